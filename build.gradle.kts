@@ -10,6 +10,7 @@ plugins {
     application                                    // for "run" task
     id("edu.sc.seis.launch4j") version "4.0.0"     // for generating Windows .exe
     id("io.github.goooler.shadow") version "8.1.8" // only needed to make linux build
+    id("me.champeau.jmh") version "0.7.2"          // for benchmarks in src/jmh
 }
 
 val appWorkingDir = layout.buildDirectory.dir("app")
@@ -35,6 +36,13 @@ java {
         languageVersion.set(jdkVersion)
     }
 }
+
+// the Vector API is still an incubator module, see ForceEngine.VECTORIZED
+val vectorApiModule = "jdk.incubator.vector"
+tasks.withType<JavaCompile> {
+    options.compilerArgs.addAll(listOf("--add-modules", vectorApiModule))
+}
+
 val javaHome: File = javaToolchains.launcherFor {
     languageVersion.set(jdkVersion)
 }.get().metadata.installationPath.asFile
@@ -69,7 +77,7 @@ tasks.register<Exec>("createRuntime") {
         "--module-path", "$javaHome/jmods",
         "--compress", "zip-0", // no compression here -> will be compressed in final zip
         "--add-modules",
-        "java.base,java.desktop,java.scripting,java.sql,jdk.unsupported",
+        "java.base,java.desktop,java.management,java.scripting,java.sql,jdk.httpserver,jdk.jfr,jdk.unsupported,$vectorApiModule",
         "--output", outputDir
     )
 }
@@ -117,6 +125,48 @@ application {
 tasks.named<JavaExec>("run") {
     dependsOn("copyResources")
     workingDir(appWorkingDir)
+    jvmArgs("--add-modules", vectorApiModule)  // makes the vectorized force engine available
+}
+
+// runs the simulation without a window, e.g. ./gradlew runHeadless --args="--steps 1000"
+tasks.register<JavaExec>("runHeadless") {
+    group = "application"
+    description = "Runs the simulation without graphics, see HeadlessMain."
+    mainClass.set("com.particle_life.app.HeadlessMain")
+    classpath = sourceSets["main"].runtimeClasspath
+    workingDir(projectDir)
+    jvmArgs("--add-modules", vectorApiModule)
+}
+
+// runs the benchmark scenarios and optionally compares them to a baseline, see ScenarioBenchmark
+tasks.register<JavaExec>("runScenarios") {
+    group = "verification"
+    description = "Measures the performance of standard scenarios without graphics."
+    mainClass.set("com.particle_life.app.ScenarioBenchmark")
+    classpath = sourceSets["main"].runtimeClasspath
+    workingDir(projectDir)
+    jvmArgs("--add-modules", vectorApiModule)
+}
+
+// compares thread counts, e.g. ./gradlew runScalingStudy --args="--threads 1,2,4,8 --mode strong"
+tasks.register<JavaExec>("runScalingStudy") {
+    group = "verification"
+    description = "Measures the strong and weak scaling with the number of threads."
+    mainClass.set("com.particle_life.app.ScalingStudy")
+    classpath = sourceSets["main"].runtimeClasspath
+    workingDir(projectDir)
+    jvmArgs("--add-modules", vectorApiModule)
+}
+
+// benchmarks, e.g. ./gradlew jmh -Pjmh.includes=PhysicsBenchmark -Pjmh.params="particles=10000,100000;threads=4"
+jmh {
+    jmhVersion.set("1.37")
+    (findProperty("jmh.includes") as String?)?.let { includes.set(listOf(it)) }
+    (findProperty("jmh.params") as String?)?.split(";")?.forEach { param ->
+        val (name, values) = param.split("=", limit = 2)
+        benchmarkParameters.put(name, objects.listProperty<String>().value(values.split(",")))
+    }
+    resultFormat.set("JSON")
 }
 
 group = "com.particle.life.app"
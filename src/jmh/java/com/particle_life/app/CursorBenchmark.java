@@ -0,0 +1,47 @@
+package com.particle_life.app;
+
+import com.particle_life.app.cursors.CircleCursorShape;
+import com.particle_life.app.cursors.Cursor;
+import com.particle_life.backend.BenchmarkSetup;
+import com.particle_life.backend.ParticleStore;
+import com.particle_life.backend.Physics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Cursor#countSelection} runs on the render thread in every frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CursorBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int particles;
+
+    @Param({"true", "false"})
+    public boolean wrap;
+
+    private ParticleStore particleStore;
+    private final Cursor cursor = new Cursor();
+
+    @Setup(Level.Trial)
+    public void createParticles() {
+        Physics physics = BenchmarkSetup.createPhysics(particles, BenchmarkSetup.Positions.UNIFORM, 7, 0.02, 1);
+        particleStore = physics.particles;
+        physics.kill();
+
+        cursor.shape = new CircleCursorShape();
+        cursor.position.set(0.5, 0.5, 0);
+        cursor.size = 0.1;
+    }
+
+    @Benchmark
+    public int countSelection() {
+        return cursor.countSelection(particleStore, wrap);
+    }
+}
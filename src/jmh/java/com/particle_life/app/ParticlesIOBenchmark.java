@@ -0,0 +1,47 @@
+package com.particle_life.app;
+
+import com.particle_life.app.io.ParticlesIO;
+import com.particle_life.backend.BenchmarkSetup;
+import com.particle_life.backend.ParticleStore;
+import com.particle_life.backend.Physics;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParticlesIOBenchmark {
+
+    @Param({"10000", "100000"})
+    public int particles;
+
+    private ParticleStore particleStore;
+    private byte[] savedParticles;
+
+    @Setup(Level.Trial)
+    public void createParticles() throws IOException {
+        Physics physics = BenchmarkSetup.createPhysics(particles, BenchmarkSetup.Positions.UNIFORM, 7, 0.02, 1);
+        particleStore = physics.particles;
+        physics.kill();
+        savedParticles = save();
+    }
+
+    @Benchmark
+    public byte[] save() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParticlesIO.saveParticles(particleStore, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public ParticleStore load() {
+        return ParticlesIO.loadParticles(new ByteArrayInputStream(savedParticles));
+    }
+}
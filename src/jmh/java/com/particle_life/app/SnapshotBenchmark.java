@@ -0,0 +1,41 @@
+package com.particle_life.app;
+
+import com.particle_life.backend.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int particles;
+
+    private ExtendedPhysics physics;
+    private final PhysicsSnapshot snapshot = new PhysicsSnapshot();
+    private final LoadDistributor loadDistributor = new LoadDistributor();
+
+    @Setup(Level.Trial)
+    public void createPhysics() {
+        physics = new ExtendedPhysics(new DefaultAccelerator(),
+                new DefaultPositionSetter(), new DefaultMatrixGenerator(), new DefaultTypeSetter());
+        physics.setParticleCount(particles);
+    }
+
+    @TearDown(Level.Trial)
+    public void kill() {
+        physics.kill();
+        loadDistributor.kill();
+    }
+
+    @Benchmark
+    public PhysicsSnapshot take() {
+        snapshot.take(physics, loadDistributor, null);
+        return snapshot;
+    }
+}
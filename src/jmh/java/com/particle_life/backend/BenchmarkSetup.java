@@ -0,0 +1,71 @@
+package com.particle_life.backend;
+
+import java.util.Random;
+
+/**
+ * Creates reproducible simulation states for the benchmarks.
+ */
+public final class BenchmarkSetup {
+
+    public enum Positions {
+        /**
+         * Uniformly distributed over the whole space.
+         */
+        UNIFORM,
+        /**
+         * Gathered in a few dense Gaussian clusters, as in a settled simulation.
+         */
+        CLUSTERED
+    }
+
+    private static final long SEED = 42;
+    private static final int CLUSTERS = 20;
+    private static final double CLUSTER_RADIUS = 0.03;
+
+    private BenchmarkSetup() {
+    }
+
+    public static Physics createPhysics(int particleCount, Positions positions, int matrixSize, double rmax, int threads) {
+        Random random = new Random(SEED);
+        Physics physics = new Physics(new DefaultAccelerator(),
+                positionSetter(positions, random),
+                size -> randomMatrix(size, random),
+                (position, velocity, type, nTypes) -> random.nextInt(nTypes));
+        physics.setMatrixSize(matrixSize);
+        physics.settings.rmax = rmax;
+        physics.preferredNumberOfThreads = threads;
+        // create all particles from scratch, as shrinking the default particles would shuffle them randomly
+        physics.particles = new ParticleStore();
+        physics.setParticleCount(particleCount);
+        return physics;
+    }
+
+    public static PositionSetter positionSetter(Positions positions, Random random) {
+        return switch (positions) {
+            case UNIFORM -> (position, type, nTypes) -> position.set(random.nextDouble(), random.nextDouble(), 0);
+            case CLUSTERED -> {
+                double[] centers = new double[2 * CLUSTERS];
+                for (int k = 0; k < centers.length; k++) {
+                    centers[k] = random.nextDouble();
+                }
+                yield (position, type, nTypes) -> {
+                    int k = random.nextInt(CLUSTERS);
+                    position.set(
+                            centers[2 * k] + random.nextGaussian() * CLUSTER_RADIUS,
+                            centers[2 * k + 1] + random.nextGaussian() * CLUSTER_RADIUS,
+                            0);
+                };
+            }
+        };
+    }
+
+    private static Matrix randomMatrix(int size, Random random) {
+        DefaultMatrix matrix = new DefaultMatrix(size);
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                matrix.set(i, j, 2 * random.nextDouble() - 1);
+            }
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,78 @@
+package com.particle_life.backend;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole {@link Physics#update()} as well as its most expensive phases on their own.
+ * <p>
+ * Run with <code>./gradlew jmh</code>, or select a subset, e.g.
+ * <code>./gradlew jmh -Pjmh.includes=PhysicsBenchmark.update -Pjmh.params="particles=100000;threads=4"</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class PhysicsBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int particles;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    public BenchmarkSetup.Positions positions;
+
+    @Param({"1", "4", "12"})
+    public int threads;
+
+    @Param({"7"})
+    public int matrixSize;
+
+    @Param({"0.02"})
+    public double rmax;
+
+    @Param({"SCALAR"})
+    public ForceEngine forceEngine;
+
+    private Physics physics;
+    private ParticleStore initialParticles;
+
+    @Setup(Level.Trial)
+    public void createPhysics() {
+        physics = BenchmarkSetup.createPhysics(particles, positions, matrixSize, rmax, threads);
+        physics.forceEngine = forceEngine;
+        initialParticles = physics.particles.deepCopy();
+    }
+
+    /**
+     * Starts each iteration from the same state, as the particles would otherwise drift into clusters,
+     * and runs one step so that the containers are set up for the individual phases.
+     */
+    @Setup(Level.Iteration)
+    public void resetParticles() {
+        physics.particles = initialParticles.deepCopy();
+        physics.update();
+    }
+
+    @TearDown(Level.Trial)
+    public void kill() {
+        physics.kill();
+    }
+
+    @Benchmark
+    public void update() {
+        physics.update();
+    }
+
+    @Benchmark
+    public void makeContainers() {
+        physics.runPhase(physics::makeContainers);
+    }
+
+    @Benchmark
+    public void updateVelocities() {
+        physics.runPhase(physics::updateVelocities);
+    }
+}
@@ -54,4 +54,26 @@ public class AppSettings extends TomlFile {
     public boolean autoDt = false;
     @TomlKey("position_setter")
     public String positionSetter = "centered";
+    @TomlKey("tabulated_forces")
+    public boolean tabulatedForces = false;
+    @TomlKey("force_engine")
+    public String forceEngine = "SCALAR";
+    @TomlKey("container_subdivision")
+    public int containerSubdivision = 1;
+    @TomlKey("container_order")
+    public String containerOrder = "ROW_MAJOR";
+    @TomlKey("load_balancing")
+    public String loadBalancing = "EVEN";
+    @TomlKey("auto_tune")
+    public boolean autoTune = false;  // let the physics find the fastest number of threads (see AutoTuner)
+    @TomlKey("sleep_steps")
+    public int sleepSteps = 0;
+    @TomlKey("fast_forward_steps")
+    public int fastForwardSteps = 10;
+    @TomlKey("fast_forward_snapshot_interval")
+    public int fastForwardSnapshotInterval = 250;
+    @TomlKey("fast_forward_duration")
+    public double fastForwardDuration = 0;
+    @TomlKey("metrics_port")
+    public int metricsPort = 0;  // port of the local metrics endpoint (see MetricsServer), 0 = disabled
 }
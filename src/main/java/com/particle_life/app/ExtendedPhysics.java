@@ -4,7 +4,6 @@ import com.particle_life.app.utils.ArrayUtils;
 import com.particle_life.backend.*;
 
 import java.util.Arrays;
-import java.util.Collections;
 
 /**
  * Provides additional functionality for the Physics class
@@ -19,8 +18,9 @@ class ExtendedPhysics extends Physics {
     public int[] getTypeCount() {
         int[] typeCount = new int[settings.matrix.size()];
         Arrays.fill(typeCount, 0);
-        for (Particle p : particles) {
-            typeCount[p.type]++;
+        int n = particles.size();
+        for (int i = 0; i < n; i++) {
+            typeCount[particles.type[i]]++;
         }
         return typeCount;
     }
@@ -30,10 +30,11 @@ class ExtendedPhysics extends Physics {
         int nTypes = settings.matrix.size();
         if (nTypes < 2) return;
 
+        int n = particles.size();
         int[] idealTypeCount = new int[nTypes];
-        int count = (int) Math.ceil(particles.length / (double) nTypes);
+        int count = (int) Math.ceil(n / (double) nTypes);
         Arrays.fill(idealTypeCount, 0, nTypes - 1, count);
-        idealTypeCount[nTypes - 1] = particles.length - (nTypes - 1) * (count);
+        idealTypeCount[nTypes - 1] = n - (nTypes - 1) * (count);
 
         setTypeCount(idealTypeCount);
     }
@@ -52,45 +53,34 @@ class ExtendedPhysics extends Physics {
         // (otherwise, the container layout becomes visible)
         shuffleParticles();
 
+        int n = particles.size();
         int newCount = Arrays.stream(typeCount).sum();
-        if (newCount != particles.length) {
-
-            Particle[] newParticles = new Particle[newCount];
+        if (newCount != n) {
 
             int[] actualTypeCount = new int[nTypes];
             Arrays.fill(actualTypeCount, 0);
 
             // sort all unusable particles to the end
             int i = 0;
-            int j = particles.length - 1;
+            int j = n - 1;
             while (i < j) {
 
-                int type = particles[i].type;
+                int type = particles.type[i];
                 if (actualTypeCount[type] < typeCount[type]) {
                     // need more of this type -> leave it in front
                     actualTypeCount[type]++;
                     i++;
                 } else {
                     // have enough of this type -> swap to back
-                    ArrayUtils.swap(particles, i, j);
+                    particles.swap(i, j);
                     j--;
                 }
             }
             // now i points at the end (exclusive) of the reusable particles
 
-            // copy as much as possible
-            int copyLength = Math.min(newCount, particles.length);
-            int k = 0;
-            while (k < copyLength) {
-                newParticles[k] = particles[k];
-                k++;
-            }
-
+            // keep as much as possible,
             // if necessary, fill up rest with new particles
-            while (k < newCount) {
-                newParticles[k] = new Particle();
-                k++;
-            }
+            particles.resize(newCount);
 
             // change types of all particles that couldn't be reused
             while (i < newCount) {
@@ -98,35 +88,35 @@ class ExtendedPhysics extends Physics {
                 // find type that has too few particles
                 int type = ArrayUtils.findFirstIndexWithLess(actualTypeCount, typeCount);  // need more of this type
 
-                Particle p = newParticles[i];
-                p.type = type;
-                setPosition(p);  // possible that position setter is based on type
+                particles.type[i] = type;
+                setPosition(i);  // possible that position setter is based on type
 
                 actualTypeCount[type]++;
 
                 i++;
             }
 
-            particles = newParticles;
-
         } else {
 
             int[] actualTypeCount = getTypeCount();
 
-            for (Particle p : particles) {
-                if (actualTypeCount[p.type] > typeCount[p.type]) {
+            for (int i = 0; i < n; i++) {
+                int prevType = particles.type[i];
+                if (actualTypeCount[prevType] > typeCount[prevType]) {
                     // need fewer of this type
 
                     // find type that has too few particles
                     int type = ArrayUtils.findFirstIndexWithLess(actualTypeCount, typeCount);  // need more of this type
 
                     // change type
-                    actualTypeCount[p.type]--;
-                    p.type = type;
+                    actualTypeCount[prevType]--;
+                    particles.type[i] = type;
                     actualTypeCount[type]++;
                 }
             }
         }
+
+        wakeParticles();
     }
 
     /**
@@ -134,6 +124,6 @@ class ExtendedPhysics extends Physics {
      * (i.e. if particles are treated differently depending on their position in the array).
      */
     private void shuffleParticles() {
-        Collections.shuffle(Arrays.asList(particles));
+        particles.shuffle();
     }
 }
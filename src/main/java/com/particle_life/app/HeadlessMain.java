@@ -0,0 +1,311 @@
+package com.particle_life.app;
+
+import com.particle_life.app.io.StateIO;
+import com.particle_life.backend.*;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Runs the simulation without a window, e.g. on servers without a GPU or display.
+ * <p>
+ * This only uses the backend and the IO classes of the app,
+ * so neither GLFW, OpenGL nor ImGui are loaded.
+ * Don't reference {@link Main} or any of the rendering classes from here.
+ * <p>
+ * Example:
+ * <pre>
+ * java -cp particle-life-app.jar com.particle_life.app.HeadlessMain --load saves/foo.zip --steps 5000 --output out.zip
+ * </pre>
+ * Run with <code>--help</code> to list all options.
+ */
+public class HeadlessMain {
+
+    private static final String USAGE = """
+            Usage: HeadlessMain [options]
+
+            Initial state (either load a save or generate a new state):
+              --load <file.zip>        load particles, physics settings and matrix from a save file
+              --settings <file.toml>   load physics settings (physics.toml format)
+              --seed <n>               seed for the generated matrix and particles (default: random)
+              --particles <n>          number of generated particles (default: 10000)
+              --types <n>              number of generated types (default: 7)
+
+            Duration (default: 1000 steps):
+              --steps <n>              run this many steps
+              --seconds <t>            run until this much real time has passed
+              --warmup <n>             run this many steps before measuring (default: 0)
+
+            Physics:
+              --dt <t>                 time step in seconds (default: 0.02)
+              --threads <n>            number of threads (default: number of processors)
+              --auto-tune              adjust the number of threads while running, starting from --threads
+              --engine <name>          one of %s (default: SCALAR)
+              --tabulated              use a lookup table for the forces
+
+            Output:
+              --output <file.zip>      save the final state
+              --report <file>          write the throughput report to this file (default: only print it)
+              --metrics-port <n>       serve metrics at http://localhost:<n>/metrics while running
+            """;
+
+    public static void main(String[] args) {
+        HeadlessMain headless = new HeadlessMain();
+        try {
+            headless.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(usage());
+            System.exit(1);
+        }
+        if (headless.help) {
+            System.out.print(usage());
+            return;
+        }
+
+        try {
+            headless.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static String usage() {
+        return USAGE.formatted(String.join(", ", Arrays.stream(ForceEngine.values()).map(Enum::name).toList()));
+    }
+
+    // options:
+    private boolean help = false;
+    private File loadFile = null;
+    private File settingsFile = null;
+    private long seed = new Random().nextLong();
+    private int particleCount = 10000;
+    private int typeCount = 7;
+    private long steps = -1;
+    private double seconds = -1;
+    private long warmupSteps = 0;
+    private double dt = 0.02;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private ForceEngine forceEngine = ForceEngine.SCALAR;
+    private boolean tabulated = false;
+    private boolean autoTune = false;
+    private File outputFile = null;
+    private File reportFile = null;
+    private int metricsPort = 0;
+
+    /**
+     * How often the type counts are published for the metrics.
+     */
+    private static final long TYPE_COUNT_INTERVAL_NANOS = 1_000_000_000L;
+    /**
+     * Counted by the thread that runs the physics, for the metrics server.
+     */
+    private volatile int[] latestTypeCount = null;
+    private long latestTypeCountTime = 0;
+
+    private void parseArgs(String[] args) {
+        for (int k = 0; k < args.length; k++) {
+            String arg = args[k];
+            switch (arg) {
+                case "--help", "-h" -> help = true;
+                case "--load" -> loadFile = new File(value(args, ++k, arg));
+                case "--settings" -> settingsFile = new File(value(args, ++k, arg));
+                case "--seed" -> seed = parseLong(value(args, ++k, arg), arg);
+                case "--particles" -> particleCount = (int) parseLong(value(args, ++k, arg), arg);
+                case "--types" -> typeCount = (int) parseLong(value(args, ++k, arg), arg);
+                case "--steps" -> steps = parseLong(value(args, ++k, arg), arg);
+                case "--seconds" -> seconds = parseDouble(value(args, ++k, arg), arg);
+                case "--warmup" -> warmupSteps = parseLong(value(args, ++k, arg), arg);
+                case "--dt" -> dt = parseDouble(value(args, ++k, arg), arg);
+                case "--threads" -> threads = (int) parseLong(value(args, ++k, arg), arg);
+                case "--engine" -> {
+                    String name = value(args, ++k, arg);
+                    try {
+                        forceEngine = ForceEngine.valueOf(name.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown force engine: " + name);
+                    }
+                }
+                case "--tabulated" -> tabulated = true;
+                case "--auto-tune" -> autoTune = true;
+                case "--output" -> outputFile = new File(value(args, ++k, arg));
+                case "--report" -> reportFile = new File(value(args, ++k, arg));
+                case "--metrics-port" -> metricsPort = (int) parseLong(value(args, ++k, arg), arg);
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (steps >= 0 && seconds >= 0) {
+            throw new IllegalArgumentException("Use either --steps or --seconds, not both.");
+        }
+        if (steps < 0 && seconds < 0) steps = 1000;
+        if (particleCount < 0) throw new IllegalArgumentException("--particles must not be negative.");
+        if (typeCount < 1) throw new IllegalArgumentException("--types must be at least 1.");
+        if (threads < 1) throw new IllegalArgumentException("--threads must be at least 1.");
+        if (warmupSteps < 0) throw new IllegalArgumentException("--warmup must not be negative.");
+        if (metricsPort < 0 || metricsPort > 65535) throw new IllegalArgumentException("Invalid value for --metrics-port.");
+    }
+
+    static String value(String[] args, int k, String option) {
+        if (k >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+        return args[k];
+    }
+
+    static long parseLong(String value, String option) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for %s: %s".formatted(option, value));
+        }
+    }
+
+    static double parseDouble(String value, String option) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for %s: %s".formatted(option, value));
+        }
+    }
+
+    private void run() throws IOException {
+        ExtendedPhysics physics = createPhysics();
+
+        MetricsServer metricsServer = null;
+        if (metricsPort > 0) {
+            publishTypeCount(physics);
+            metricsServer = new MetricsServer(() -> physics);
+            metricsServer.typeCounts = () -> latestTypeCount;
+            metricsServer.start(metricsPort);
+        }
+
+        for (long step = 0; step < warmupSteps; step++) {
+            step(physics);
+        }
+
+        long performedSteps = 0;
+        long startTime = System.nanoTime();
+        long maxNanos = seconds >= 0 ? (long) (seconds * 1e9) : Long.MAX_VALUE;
+        while (steps >= 0 ? performedSteps < steps : System.nanoTime() - startTime < maxNanos) {
+            step(physics);
+            performedSteps++;
+        }
+        double wallSeconds = (System.nanoTime() - startTime) / 1e9;
+
+        String report = makeReport(physics, performedSteps, wallSeconds);
+        System.out.print(report);
+        if (reportFile != null) {
+            try (PrintWriter writer = new PrintWriter(new FileWriter(reportFile))) {
+                writer.print(report);
+            }
+        }
+
+        if (outputFile != null) {
+            try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(outputFile))) {
+                StateIO.saveState(physics, zip);
+            }
+        }
+
+        if (metricsServer != null) metricsServer.stop();
+        physics.kill();
+    }
+
+    private void step(ExtendedPhysics physics) {
+        physics.update();
+        if (metricsPort > 0 && System.nanoTime() - latestTypeCountTime >= TYPE_COUNT_INTERVAL_NANOS) {
+            publishTypeCount(physics);
+        }
+    }
+
+    /**
+     * Counts the types between two steps, as the particles must not be read while they are updated.
+     */
+    private void publishTypeCount(ExtendedPhysics physics) {
+        latestTypeCount = physics.getTypeCount();
+        latestTypeCountTime = System.nanoTime();
+    }
+
+    private ExtendedPhysics createPhysics() throws IOException {
+        Accelerator accelerator = new DefaultAccelerator();
+        ExtendedPhysics physics = createRandomPhysics(new Random(seed),
+                tabulated ? new TabulatedAccelerator(accelerator) : accelerator,
+                particleCount, typeCount);
+        physics.forceEngine = forceEngine;
+        physics.preferredNumberOfThreads = threads;
+        physics.autoTune = autoTune;
+        physics.settings.dt = dt;
+
+        if (loadFile != null) {
+            try (ZipInputStream zip = new ZipInputStream(new FileInputStream(loadFile))) {
+                StateIO.loadState(physics, zip);
+            }
+        }
+
+        if (settingsFile != null) {
+            PhysicsSettingsToml toml = new PhysicsSettingsToml();
+            try (FileInputStream in = new FileInputStream(settingsFile)) {
+                toml.load(in);
+            }
+            toml.toPhysicsSettings(physics.settings);
+        }
+
+        return physics;
+    }
+
+    /**
+     * Creates a random state with uniformly distributed particles and a random matrix.
+     * All random decisions are taken from <code>random</code>, so that the same seed gives the same state.
+     */
+    static ExtendedPhysics createRandomPhysics(Random random, Accelerator accelerator, int particleCount, int typeCount) {
+        PositionSetter positionSetter = (position, type, nTypes) ->
+                position.set(random.nextDouble(), random.nextDouble(), 0);
+        MatrixGenerator matrixGenerator = size -> {
+            DefaultMatrix matrix = new DefaultMatrix(size);
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    matrix.set(i, j, 2 * random.nextDouble() - 1);
+                }
+            }
+            return matrix;
+        };
+        TypeSetter typeSetter = (position, velocity, type, nTypes) -> random.nextInt(nTypes);
+
+        ExtendedPhysics physics = new ExtendedPhysics(accelerator, positionSetter, matrixGenerator, typeSetter);
+        physics.setMatrixSize(typeCount);
+        physics.generateMatrix();
+        // start from scratch instead of shrinking, as shrinking shuffles with an unseeded generator
+        physics.particles = new ParticleStore();
+        physics.setParticleCount(particleCount);
+        return physics;
+    }
+
+    private String makeReport(Physics physics, long performedSteps, double wallSeconds) {
+        int n = physics.particles.size();
+        double stepsPerSecond = performedSteps / wallSeconds;
+        return String.format(Locale.ROOT, """
+                        particles: %d
+                        types: %d
+                        force engine: %s
+                        threads: %d
+                        steps: %d
+                        simulated time: %.3f s
+                        wall time: %.3f s
+                        steps per second: %.2f
+                        particle updates per second: %.0f
+                        """,
+                n,
+                physics.settings.matrix.size(),
+                physics.forceEngine,
+                physics.preferredNumberOfThreads,
+                performedSteps,
+                performedSteps * physics.settings.dt,
+                wallSeconds,
+                stepsPerSecond,
+                stepsPerSecond * n);
+    }
+}
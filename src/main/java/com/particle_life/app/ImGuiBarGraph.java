@@ -108,6 +108,84 @@ class ImGuiBarGraph {
         return hovering ? typeHovering : -1;
     }
 
+    /**
+     * Draws one horizontal bar per row, each made of segments that are stacked from left to right.
+     *
+     * @param values      <code>values[row][segment]</code>, must not be negative
+     * @param maxValue    the value that fills the whole width, larger sums are cut off
+     * @param markerValue where to draw a vertical line, e.g. for a time budget, or -1 for no line
+     * @param unit        appended to the values in the tooltip
+     * @return segment that is hovered by mouse or -1
+     */
+    public static int drawStacked(float w, float h, Palette palette, String[] rowLabels, String[] segmentLabels,
+                                  double[][] values, double maxValue, double markerValue, String unit) {
+
+        int segmentHovering = -1;
+
+        ImDrawList drawList = ImGui.getWindowDrawList();
+
+        ImVec2 cursorAbsolute = new ImVec2();
+        ImGui.getCursorScreenPos(cursorAbsolute);
+
+        ImVec2 cursorRelative = new ImVec2();
+        ImGui.getCursorPos(cursorRelative);
+
+        int nRows = rowLabels.length;
+        int nSegments = segmentLabels.length;
+        float rowHeight = h / nRows;
+        float barHeight = rowHeight * 0.8f;
+
+        float labelWidth = 0;
+        ImVec2 textSize = new ImVec2();
+        for (String label : rowLabels) {
+            ImGui.calcTextSize(textSize, label);
+            labelWidth = Math.max(labelWidth, textSize.x);
+        }
+        float spaceAfterLabel = 4;
+        float barsX = cursorAbsolute.x + labelWidth + spaceAfterLabel;
+        float barsWidth = Math.max(0, w - labelWidth - spaceAfterLabel);
+        float scale = maxValue > 0 ? (float) (barsWidth / maxValue) : 0;
+
+        for (int row = 0; row < nRows; row++) {
+            float absY = cursorAbsolute.y + row * rowHeight + (rowHeight - barHeight) / 2;
+
+            ImGui.calcTextSize(textSize, rowLabels[row]);
+            ImGui.setCursorPos(cursorRelative.x, cursorRelative.y + row * rowHeight + (rowHeight - textSize.y) / 2);
+            ImGui.text(rowLabels[row]);
+
+            float x = barsX;
+            for (int segment = 0; segment < nSegments; segment++) {
+                double value = values[row][segment];
+                float left = x;
+                float right = Math.min(barsX + barsWidth, x + (float) value * scale);
+                x = right;
+                if (right <= left) continue;
+
+                Color color = palette.getColor(segment, nSegments);
+                drawList.addRectFilled(left, absY, right, absY + barHeight,
+                        ImGui.colorConvertFloat4ToU32(color.r, color.g, color.b, color.a));
+
+                if (ImGui.isMouseHoveringRect(left, absY, right, absY + barHeight)) {
+                    drawList.addRect(left, absY, right, absY + barHeight,
+                            ImGui.colorConvertFloat4ToU32(1, 1, 1, 1));
+                    ImGui.setTooltip("%s %s: %.2f %s".formatted(rowLabels[row], segmentLabels[segment], value, unit));
+                    segmentHovering = segment;
+                }
+            }
+        }
+
+        if (markerValue >= 0 && markerValue <= maxValue) {
+            float markerX = barsX + (float) markerValue * scale;
+            drawList.addLine(markerX, cursorAbsolute.y, markerX, cursorAbsolute.y + h,
+                    ImGui.colorConvertFloat4ToU32(1, 1, 1, 0.8f));
+        }
+
+        ImGui.setCursorPos(cursorRelative.x, cursorRelative.y);
+        ImGui.dummy(w, h);
+
+        return segmentHovering;
+    }
+
     private static String formatText(int count, int total, boolean percentage) {
         if (percentage) {
             return "%.0f%%".formatted(total != 0 ? 100 * count / (double) total : 0);
@@ -5,16 +5,17 @@ import com.particle_life.app.color.NaturalRainbowPalette;
 import com.particle_life.app.color.Palette;
 import com.particle_life.app.color.PalettesProvider;
 import com.particle_life.app.cursors.*;
-import com.particle_life.app.io.MatrixIO;
-import com.particle_life.app.io.ParticlesIO;
 import com.particle_life.app.io.ResourceAccess;
+import com.particle_life.app.io.StateIO;
 import com.particle_life.app.selection.SelectionManager;
 import com.particle_life.app.shaders.CursorShader;
 import com.particle_life.app.shaders.ParticleShader;
 import com.particle_life.app.shaders.ShaderProvider;
 import com.particle_life.app.utils.*;
 import com.particle_life.backend.*;
+import imgui.ImDrawList;
 import imgui.ImGui;
+import imgui.ImVec2;
 import imgui.flag.*;
 import imgui.gl3.ImGuiImplGl3;
 import imgui.type.ImBoolean;
@@ -87,6 +88,15 @@ public class Main extends App {
 
     // data
     private final Clock renderClock = new Clock(60);
+    /*
+     * Durations for the performance window.
+     * The physics durations are copied from the latest snapshot,
+     * the others are measured in this thread.
+     */
+    private final TimeHistory[] physicsPhaseTimes = new TimeHistory[UpdatePhase.values().length];
+    private final TimeHistory snapshotTakeTimes = new TimeHistory(Physics.PHASE_HISTORY_SIZE);
+    private final TimeHistory uploadTimes = new TimeHistory(Physics.PHASE_HISTORY_SIZE);
+    private final TimeHistory renderTimes = new TimeHistory(Physics.PHASE_HISTORY_SIZE);
     private SelectionManager<ParticleShader> shaders;
     private SelectionManager<Palette> palettes;
     private SelectionManager<MatrixGenerator> matrixGenerators;
@@ -104,22 +114,60 @@ public class Main extends App {
     private final ImGuiImplGl3 imGuiGl3 = new ImGuiImplGl3();
 
     private ExtendedPhysics physics;
+    private ScalarAccelerator accelerator;
     private Loop loop;
+    private MetricsServer metricsServer = null;  // only if enabled in the settings
     /**
-     * The snapshot is used to store a deep copy of the physics state
+     * The snapshots are used to store deep copies of the physics state
      * (particles, physics settings, ...) just for this thread,
      * so that the physics simulation can continue modifying the data
      * in different threads in the meantime.
      * Otherwise, the renderer could get in trouble if it tries to
      * access the data while it is being modified by the physics simulation.
+     * <p>
+     * The physics thread writes a snapshot and publishes it,
+     * and this thread acquires the latest published one at the beginning of each frame.
+     * So neither thread waits for the other, and a snapshot is never modified while it is read.
+     */
+    private TripleBuffer<PhysicsSnapshot> physicsSnapshots;
+    /**
+     * The snapshot that this thread currently reads, i.e. the read buffer of {@link #physicsSnapshots}.
      */
     private PhysicsSnapshot physicsSnapshot;
     private LoadDistributor physicsSnapshotLoadDistributor;  // speed up taking snapshots with parallelization
-    public AtomicBoolean newSnapshotAvailable = new AtomicBoolean(false);
+    /**
+     * How long taking the snapshots took. Only accessed from the physics loop.
+     */
+    private final TimeHistory snapshotTakeHistory = new TimeHistory(Physics.PHASE_HISTORY_SIZE);
+    // the most recently published snapshot, for other threads:
+    private volatile long latestSnapshotTime = 0;
+    private volatile int[] latestSnapshotTypeCount = null;
+
+    /**
+     * If this is <code>true</code>, the physics loop runs
+     * {@link AppSettings#fastForwardSteps} steps per iteration with a fixed time step,
+     * and snapshots are only taken every {@link AppSettings#fastForwardSnapshotInterval} milliseconds.
+     */
+    private volatile boolean fastForward = false;
+    /**
+     * Simulated time at which fast-forward stops, in seconds.
+     * Only accessed from the physics loop.
+     */
+    private double fastForwardEndTime = Double.POSITIVE_INFINITY;
+    /**
+     * Sum of all time steps since the physics was created, in seconds.
+     * Only accessed from the physics loop.
+     */
+    private double simulatedTime = 0;
+    // measuring the steps per second during fast-forward:
+    private long stepRateStartTime;
+    private int stepRateSteps;
+    private volatile double fastForwardStepsPerSecond = 0;
 
     // local copy of snapshot:
     private PhysicsSettings settings;
     private int particleCount;
+    private int sleepingCount;
     private int preferredNumberOfThreads;
     private int cursorParticleCount = 0;
 
@@ -150,12 +198,16 @@ public class Main extends App {
 
     // GUI: constants that control how the GUI behaves
     private long physicsNotReactingThreshold = 3000;  // time in milliseconds
+    private static final double FRAME_BUDGET_MILLIS = 1000.0 / 60;  // for the performance window
+    private static final int HEAT_MAP_MAX_RESOLUTION = 64;  // containers are merged into blocks above this
     private int typeCountDiagramStepSize = 100;
     private boolean typeCountDisplayPercentage = false;
 
     // GUI: hide / show parts
     private final ImBoolean showGui = new ImBoolean(true);
     private final ImBoolean showGraphicsWindow = new ImBoolean(false);
+    private final ImBoolean showPerformanceWindow = new ImBoolean(false);
+    private boolean showCellHeatMap = false;
     private final ImBoolean showControlsWindow = new ImBoolean(false);
     private final ImBoolean showAboutWindow = new ImBoolean(false);
     private final ImBoolean showSavesPopup = new ImBoolean(false);
@@ -175,6 +227,10 @@ public class Main extends App {
 
     @Override
     protected void setup() {
+        for (int i = 0; i < physicsPhaseTimes.length; i++) {
+            physicsPhaseTimes[i] = new TimeHistory(Physics.PHASE_HISTORY_SIZE);
+        }
+
         try {
             APP_VERSION = ResourceAccess.readTextFile(".internal/version.txt").trim();
         } catch (IOException e) {
@@ -247,6 +303,19 @@ public class Main extends App {
         loop = new Loop();
         loop.start(this::updatePhysics);
 
+        if (appSettings.metricsPort > 0) {
+            metricsServer = new MetricsServer(() -> physics);
+            metricsServer.typeCounts = () -> latestSnapshotTypeCount;
+            metricsServer.snapshotTime = () -> latestSnapshotTime;
+            metricsServer.loop = () -> loop;
+            try {
+                metricsServer.start(appSettings.metricsPort);
+            } catch (IOException e) {
+                e.printStackTrace();
+                metricsServer = null;
+            }
+        }
+
         // set default selection for palette
         if (palettes.hasName(appSettings.palette)) {
             palettes.setActive(palettes.getIndexByName(appSettings.palette));
@@ -272,26 +341,90 @@ public class Main extends App {
     }
 
     private void createPhysics() {
-        Accelerator accelerator = (a, pos) -> {
-            double beta = 0.3;
-            double dist = pos.length();
-            double force = dist < beta ? (dist / beta - 1) : a * (1 - Math.abs(1 + beta - 2 * dist) / (1 - beta));
-            return pos.mul(force / dist);
-        };
+        accelerator = new DefaultAccelerator();
         physics = new ExtendedPhysics(
-                accelerator,
+                appSettings.tabulatedForces ? new TabulatedAccelerator(accelerator) : accelerator,
                 positionSetters.getActive(),
                 matrixGenerators.getActive(),
                 typeSetters.getActive());
-        physicsSnapshot = new PhysicsSnapshot();
+        try {
+            physics.forceEngine = ForceEngine.valueOf(appSettings.forceEngine);
+        } catch (IllegalArgumentException e) {
+            physics.forceEngine = ForceEngine.SCALAR;
+        }
+        physics.containerSubdivision = appSettings.containerSubdivision;
+        try {
+            physics.containerOrder = ContainerOrder.valueOf(appSettings.containerOrder);
+        } catch (IllegalArgumentException e) {
+            physics.containerOrder = ContainerOrder.ROW_MAJOR;
+        }
+        try {
+            physics.loadBalancing = LoadBalancing.valueOf(appSettings.loadBalancing);
+        } catch (IllegalArgumentException e) {
+            physics.loadBalancing = LoadBalancing.EVEN;
+        }
+        physics.sleepSteps = Math.max(0, appSettings.sleepSteps);
+        physics.autoTune = appSettings.autoTune;
+        physicsSnapshots = new TripleBuffer<>(PhysicsSnapshot::new);
         physicsSnapshotLoadDistributor = new LoadDistributor();
-        physicsSnapshot.take(physics, physicsSnapshotLoadDistributor);
-        newSnapshotAvailable.set(true);
+        takeSnapshot();  // the loop isn't running yet, so this thread can take the first one
+    }
+
+    /**
+     * Copies the physics state into the write buffer of {@link #physicsSnapshots} and publishes it.
+     * Only call this from the physics loop.
+     */
+    private void takeSnapshot() {
+        PhysicsSnapshot snapshot = physicsSnapshots.getWriteBuffer();
+        snapshot.preferredNumberOfThreads = physics.preferredNumberOfThreads;  // may be auto-tuned
+        snapshot.take(physics, physicsSnapshotLoadDistributor, snapshotTakeHistory);
+        latestSnapshotTime = snapshot.snapshotTime;
+        latestSnapshotTypeCount = snapshot.typeCount;
+        physicsSnapshots.publish();
     }
 
     private void updatePhysics(double realDt) {
-        physics.settings.dt = appSettings.autoDt ? realDt : appSettings.dt;
-        physics.update();
+        if (!fastForward) {
+            physics.settings.dt = appSettings.autoDt ? realDt : appSettings.dt;
+            physics.update();
+            simulatedTime += physics.settings.dt;
+            return;
+        }
+
+        // the real time per iteration is meaningless here, so always use the fixed time step
+        physics.settings.dt = appSettings.dt;
+        int steps = 0;
+        while (steps < appSettings.fastForwardSteps) {
+            physics.update();
+            simulatedTime += physics.settings.dt;
+            steps++;
+            if (simulatedTime >= fastForwardEndTime) {
+                fastForward = false;
+                break;
+            }
+        }
+
+        stepRateSteps += steps;
+        long now = System.nanoTime();
+        long elapsed = now - stepRateStartTime;
+        if (elapsed >= 500_000_000L) {
+            fastForwardStepsPerSecond = stepRateSteps * 1e9 / elapsed;
+            stepRateStartTime = now;
+            stepRateSteps = 0;
+        }
+    }
+
+    /**
+     * Must be called from the physics loop.
+     *
+     * @param duration how much time to simulate, in seconds, or 0 to run until stopped
+     */
+    private void startFastForward(double duration) {
+        fastForwardEndTime = duration > 0 ? simulatedTime + duration : Double.POSITIVE_INFINITY;
+        stepRateStartTime = System.nanoTime();
+        stepRateSteps = 0;
+        fastForwardStepsPerSecond = 0;
+        fastForward = true;
     }
 
     @Override
@@ -328,6 +461,7 @@ public class Main extends App {
             }
         }
 
+        if (metricsServer != null) metricsServer.stop();
         if (!loop.stop(1000)) {
             loop.kill();
             physics.kill();
@@ -341,6 +475,7 @@ public class Main extends App {
         if (this.error == null) {
             renderClock.tick();
             updateCanvas();
+            long renderStartTime = System.nanoTime();
 
             int texWidth, texHeight;
 
@@ -444,6 +579,10 @@ public class Main extends App {
             }
             ImGui.getBackgroundDrawList().addImage(cursorTexture.textureSingle, 0, 0, width, height,
                     0, 0, 1, 1);
+            LoadStats loadStats = physics.getLoadStats();
+            if (showCellHeatMap && physics.recordLoadStats && loadStats != null) {
+                drawCellHeatMap(loadStats);
+            }
 
             buildGui();
             ImGui.render();
@@ -452,6 +591,7 @@ public class Main extends App {
             glClearColor(0, 0, 0, 1);
             glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
             imGuiGl3.render(ImGui.getDrawData());
+            renderTimes.add(System.nanoTime() - renderStartTime);
         } else {
             ImGui.newFrame();
             buildErrorGui();
@@ -491,36 +631,40 @@ public class Main extends App {
         camPos.lerp(camPosGoal, appSettings.shiftSmoothness);
         camSize = MathUtils.lerp(camSize, camSizeGoal, appSettings.zoomSmoothness);
 
-        // count particles under cursor
-        {
-            try {
-                cursorParticleCount = cursor.countSelection(physics.particles, physics.settings.wrap);
-            } catch (NullPointerException e) {
-                e.printStackTrace();
-                /*
-                 The particle array might be null if the physics thread
-                 replaces the particle array while this executes
-                 (e.g. if the particle count is changed).
-                 I admit that this is not a clean solution, but anything else
-                 would have required too many changes to the code
-                 base, i.e. would have been overkill for this simple task.
-                 For example, the following would have been a clean solution:
-                     Do proper triple buffering of the particle array.
-                     In physics thread:
-                         1. copy Physics.particles -> physicsSnapshot1.particles
-                     In main thread (here):
-                         1. copy physicsSnapshot1.particles -> physicsSnapshot2.particles
-                         2. upload physicsSnapshot1(or 2).particles -> GPU
-                     Then, physicsSnapshot2.particles could be used here for counting the selection without risk.
-                 Another clean solution would maybe be to declare Physics.particles as volatile?
-                 Currently, another safe way would be to use the following:
-                     loop.enqueue(() -> cursorParticleCount = cursor.countSelection(physics));
-                 But this would make the particle count laggy if the physics simulation is slow,
-                 and I find it a better user experience to have the particle count ALWAYS update in real time.
-                */
+        // get the latest snapshot, if the physics published a new one
+        if (physicsSnapshots.acquire()) {
+            physicsSnapshot = physicsSnapshots.getReadBuffer();
+
+            long uploadStartTime = System.nanoTime();
+            ParticleUploadEvent uploadEvent = new ParticleUploadEvent();
+            uploadEvent.begin();
+            particleRenderer.bufferParticleData(shaders.getActive(),
+                    physicsSnapshot.positions,
+                    physicsSnapshot.velocities,
+                    physicsSnapshot.types);
+            uploadEvent.end();
+            uploadTimes.add(System.nanoTime() - uploadStartTime);
+            if (uploadEvent.shouldCommit()) {
+                uploadEvent.particleCount = physicsSnapshot.particleCount;
+                uploadEvent.threadCount = physicsSnapshot.threadCount;
+                uploadEvent.pairsEvaluated = physicsSnapshot.pairsEvaluated;
+                uploadEvent.cellCount = physicsSnapshot.cellCount;
+                uploadEvent.commit();
+            }
+            for (int i = 0; i < physicsPhaseTimes.length; i++) {
+                physicsPhaseTimes[i].set(physicsSnapshot.phaseTimes[i]);
             }
+            snapshotTakeTimes.set(physicsSnapshot.takeTimes);
+            settings = physicsSnapshot.settings.deepCopy();
+            particleCount = physicsSnapshot.particleCount;
+            sleepingCount = physicsSnapshot.sleepingCount;
+            preferredNumberOfThreads = physicsSnapshot.threadCount;
         }
 
+        // count particles under cursor
+        cursorParticleCount = cursor.countSelection(physicsSnapshot.positions, physicsSnapshot.particleCount,
+                physicsSnapshot.settings.wrap);
+
         // cursor actions
         if (leftDraggingParticles || rightDraggingParticles) {
 
@@ -541,65 +685,57 @@ public class Main extends App {
                     final Vector3d delta = dragStopWorld.sub(dragStartWorld);  // dragged distance
                     cursorCopy.position.set(dragStartWorld.x, dragStartWorld.y, 0.0);  // set cursor copy to start of dragging
                     loop.enqueue(() -> {
-                        for (Particle p : cursorCopy.getSelection(physics.particles, physics.settings.wrap)) {
-                            p.position.add(delta.x, delta.y, 0);
-                            physics.ensurePosition(p.position);  // wrap or clamp
+                        ParticleStore particles = physics.particles;
+                        for (int i : cursorCopy.getSelection(particles, physics.settings.wrap)) {
+                            particles.x[i] += delta.x;
+                            particles.y[i] += delta.y;
+                            physics.ensurePosition(i);  // wrap or clamp
+                            particles.restingSteps[i] = 0;  // wake up, see Physics.sleepSteps
                         }
                     });
                 }
                 case BRUSH -> {
                     final int addCount = appSettings.brushPower;
                     loop.enqueue(() -> {
-                        int prevLength = physics.particles.length;
-                        physics.particles = Arrays.copyOf(physics.particles, prevLength + addCount);
-                        for (int i = 0; i < addCount; i++) {
-                            Particle particle = new Particle();
-                            particle.position.set(cursorCopy.sampleRandomPoint());
-                            physics.ensurePosition(particle.position);
-                            particle.type = physics.typeSetter.getType(
-                                    particle.position,
-                                    particle.velocity,
-                                    particle.type,
+                        ParticleStore particles = physics.particles;
+                        int prevLength = particles.size();
+                        particles.resize(prevLength + addCount);
+                        for (int i = prevLength; i < prevLength + addCount; i++) {
+                            Vector3d position = cursorCopy.sampleRandomPoint();
+                            physics.ensurePosition(position);
+                            particles.setPosition(i, position);
+                            particles.type[i] = physics.typeSetter.getType(
+                                    position,
+                                    new Vector3d(0, 0, 0),
+                                    particles.type[i],
                                     physics.settings.matrix.size()
                             );
-                            physics.particles[prevLength + i] = particle;
                         }
                     });
                 }
                 case DELETE -> {
                     loop.enqueue(() -> {
-                        Particle[] newParticles = new Particle[physics.particles.length];
+                        ParticleStore particles = physics.particles;
+                        int n = particles.size();
                         int j = 0;
-                        for (Particle particle : physics.particles) {
-                            if (!cursorCopy.isInside(particle, physics.settings.wrap)) {
-                                newParticles[j] = particle;
+                        for (int i = 0; i < n; i++) {
+                            if (!cursorCopy.isInside(particles.x[i], particles.y[i], physics.settings.wrap)) {
+                                particles.set(j, particles, i);  // move to the front
                                 j++;
                             }
                         }
-                        physics.particles = Arrays.copyOf(newParticles, j);  // cut to correct length
+                        particles.resize(j);  // cut to correct length
                     });
                 }
             }
         }
 
-        if (newSnapshotAvailable.get()) {
-
-            // get local copy of snapshot
-
-            particleRenderer.bufferParticleData(shaders.getActive(),
-                    physicsSnapshot.positions,
-                    physicsSnapshot.velocities,
-                    physicsSnapshot.types);
-            settings = physicsSnapshot.settings.deepCopy();
-            particleCount = physicsSnapshot.particleCount;
-            preferredNumberOfThreads = physics.preferredNumberOfThreads;
-
-            newSnapshotAvailable.set(false);
-        }
-
         loop.doOnce(() -> {
-            physicsSnapshot.take(physics, physicsSnapshotLoadDistributor);
-            newSnapshotAvailable.set(true);
+            if (fastForward && System.currentTimeMillis() - latestSnapshotTime
+                    < appSettings.fastForwardSnapshotInterval) {
+                return;  // don't spend the time on snapshots that won't be rendered anyway
+            }
+            takeSnapshot();
         });
 
         if (mouseX == 0 && mouseY == 0 && !showGui.get()) {
@@ -797,12 +933,52 @@ public class Main extends App {
                         "The physics simulation runs independently from the graphics in the background.");
 
                 ImGui.sameLine();
-                if (loop.getAvgFramerate() < 100000) {
+                if (fastForward) {
+                    ImGui.text(String.format("Steps/s: %7.0f", fastForwardStepsPerSecond));
+                } else if (loop.getAvgFramerate() < 100000) {
                     ImGui.text(String.format("FPS: %5.0f", loop.getAvgFramerate()));
                 } else {
                     ImGui.text("");
                 }
 
+                if (ImGui.button(fastForward ? "Stop Fast-Forward" : "Fast-Forward")) {
+                    if (fastForward) {
+                        loop.enqueue(() -> fastForward = false);
+                    } else {
+                        final double duration = appSettings.fastForwardDuration;
+                        loop.enqueue(() -> startFastForward(duration));
+                    }
+                }
+                ImGuiUtils.helpMarker("Runs several physics steps per iteration with the fixed time step" +
+                        " and only updates the graphics every now and then." +
+                        "\nUse this to quickly see what the current matrix evolves into.");
+
+                ImInt fastForwardStepsInput = new ImInt(appSettings.fastForwardSteps);
+                if (ImGui.inputInt("Steps per Iteration", fastForwardStepsInput, 1, 10, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    appSettings.fastForwardSteps = MathUtils.clamp(fastForwardStepsInput.get(), 1, 10000);
+                }
+                ImGuiUtils.helpMarker("How many steps are computed back-to-back during fast-forward." +
+                        " Changes to the settings are only applied between iterations.");
+
+                ImInt snapshotIntervalInput = new ImInt(appSettings.fastForwardSnapshotInterval);
+                if (ImGui.inputInt("Snapshot Interval", snapshotIntervalInput, 50, 500, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    // must stay well below the time after which the physics is considered not reacting
+                    appSettings.fastForwardSnapshotInterval = MathUtils.clamp(snapshotIntervalInput.get(), 0,
+                            (int) physicsNotReactingThreshold / 2);
+                }
+                ImGuiUtils.helpMarker("The minimum time between two graphics updates during fast-forward, in milliseconds.");
+
+                ImGuiUtils.numberInput("Duration",
+                        0f, 10000f,
+                        (float) appSettings.fastForwardDuration,
+                        "%.1f s",
+                        value -> appSettings.fastForwardDuration = value,
+                        false);
+                ImGuiUtils.helpMarker("How much time to simulate before fast-forward stops by itself." +
+                        "\n0 means that fast-forward runs until it is stopped.");
+
+                ImGuiUtils.separator();
+
                 // SliderFloat Block
                 ImGuiUtils.numberInput("rmax",
                         0.005f, 1f,
@@ -848,13 +1024,118 @@ public class Main extends App {
                 ImGuiUtils.helpMarker("[ctrl+shift+scroll] The time step of the physics computation." +
                         "\nIf 'Auto' is ticked, the time step will be chosen automatically based on the real passed time.");
 
+                if (appSettings.autoTune) ImGui.beginDisabled();
                 ImInt threadNumberInput = new ImInt(preferredNumberOfThreads);
                 if (ImGui.inputInt("Threads", threadNumberInput, 1, 1, ImGuiInputTextFlags.EnterReturnsTrue)) {
                     final int newThreadNumber = Math.max(1, threadNumberInput.get());
                     loop.enqueue(() -> physics.preferredNumberOfThreads = newThreadNumber);
                 }
+                if (appSettings.autoTune) ImGui.endDisabled();
+                ImGui.sameLine();
+                if (ImGui.checkbox("Auto##threads", appSettings.autoTune)) {
+                    appSettings.autoTune ^= true;
+                    final boolean autoTune = appSettings.autoTune;
+                    loop.enqueue(() -> physics.autoTune = autoTune);
+                }
                 ImGuiUtils.helpMarker("The number of threads used by your processor for the physics computation." +
-                        "\n(If you don't know what this means, just ignore it.)");
+                        "\n(If you don't know what this means, just ignore it.)" +
+                        "\nIf 'Auto' is ticked, different numbers of threads are tried while the simulation is running," +
+                        " and the fastest one is kept until the step time changes a lot." +
+                        "\nEvery few thousand steps, the neighboring numbers of threads are tried again anyway.");
+                if (appSettings.autoTune) {
+                    AutoTuner autoTuner = physics.getAutoTuner();
+                    if (autoTuner.getState() == AutoTuner.State.SEARCHING) {
+                        ImGui.text("Tuning...");
+                    } else if (autoTuner.getState() == AutoTuner.State.CONVERGED) {
+                        ImGui.text(String.format("Tuned: %d threads (%.2f ms per step)",
+                                autoTuner.getBestThreads(), autoTuner.getBestStepMillis()));
+                        if (physics.loadBalancing == LoadBalancing.COST_BALANCED) {
+                            ImGui.text(String.format("Chunks per Thread: %d", autoTuner.getBestChunksPerThread()));
+                        }
+                    }
+                }
+
+                if (ImGui.beginCombo("Load Balancing", appSettings.loadBalancing)) {
+                    for (LoadBalancing loadBalancing : LoadBalancing.values()) {
+                        if (ImGui.selectable(loadBalancing.name(), loadBalancing.name().equals(appSettings.loadBalancing))) {
+                            appSettings.loadBalancing = loadBalancing.name();
+                            loop.enqueue(() -> physics.loadBalancing = loadBalancing);
+                        }
+                    }
+                    ImGui.endCombo();
+                }
+                ImGuiUtils.helpMarker("EVEN gives each thread the same number of particles." +
+                        "\nCOST_BALANCED splits the particles into many small chunks with a similar amount of work," +
+                        " which is faster if the particles form dense clusters.");
+
+                ImInt sleepStepsInput = new ImInt(appSettings.sleepSteps);
+                if (ImGui.inputInt("Sleep After", sleepStepsInput, 10, 100, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    appSettings.sleepSteps = Math.max(0, sleepStepsInput.get());
+                    final int newSleepSteps = appSettings.sleepSteps;
+                    loop.enqueue(() -> physics.sleepSteps = newSleepSteps);
+                }
+                ImGuiUtils.helpMarker("Particles that barely moved for this many steps are frozen" +
+                        " until something moves close to them (0 = off)." +
+                        "\nThis saves time if large parts of the simulation have settled into static structures." +
+                        "\nNot supported by the PAIRWISE and NEIGHBOR_LIST engines.");
+                if (appSettings.sleepSteps > 0) {
+                    ImGui.text(String.format("Sleeping: %d (%.0f%%)", sleepingCount,
+                            particleCount > 0 ? 100.0 * sleepingCount / particleCount : 0.0));
+                }
+
+                if (ImGui.checkbox("Tabulated Forces", appSettings.tabulatedForces)) {
+                    appSettings.tabulatedForces ^= true;
+                    final Accelerator newAccelerator = appSettings.tabulatedForces
+                            ? new TabulatedAccelerator(accelerator)
+                            : accelerator;
+                    loop.enqueue(() -> physics.accelerator = newAccelerator);
+                }
+                ImGuiUtils.helpMarker("Precompute the forces between all types into a lookup table." +
+                        "\nThis makes expensive force laws as fast as simple ones, but is slightly less accurate.");
+
+                if (ImGui.beginCombo("Force Engine", appSettings.forceEngine)) {
+                    for (ForceEngine engine : ForceEngine.values()) {
+                        if (!engine.isAvailable()) ImGui.beginDisabled();
+                        if (ImGui.selectable(engine.name(), engine.name().equals(appSettings.forceEngine))) {
+                            appSettings.forceEngine = engine.name();
+                            loop.enqueue(() -> physics.forceEngine = engine);
+                        }
+                        if (!engine.isAvailable()) ImGui.endDisabled();
+                    }
+                    ImGui.endCombo();
+                }
+                ImGuiUtils.helpMarker("SCALAR computes the forces one pair of particles at a time." +
+                        "\nVECTORIZED computes several pairs at once using SIMD instructions" +
+                        " (with the default force law, or else with a lookup table for the forces)." +
+                        "\nIt is only available if the app was started with '--add-modules jdk.incubator.vector'." +
+                        "\nPAIRWISE computes each pair of particles only once and applies the forces to both." +
+                        "\nNEIGHBOR_LIST remembers the nearby particles of each particle for several steps." +
+                        " This is faster for small time steps, but needs more memory." +
+                        "\nSINGLE_PRECISION is like SCALAR, but computes the distances with 32-bit floats.");
+
+                ImInt containerSubdivisionInput = new ImInt(appSettings.containerSubdivision);
+                if (ImGui.inputInt("Grid Subdivision", containerSubdivisionInput, 1, 1, ImGuiInputTextFlags.EnterReturnsTrue)) {
+                    appSettings.containerSubdivision = MathUtils.clamp(containerSubdivisionInput.get(), 1, 8);
+                    final int newContainerSubdivision = appSettings.containerSubdivision;
+                    loop.enqueue(() -> physics.containerSubdivision = newContainerSubdivision);
+                }
+                ImGuiUtils.helpMarker("The particles are sorted into a grid of cells with size rmax / subdivision." +
+                        "\nSmaller cells mean that fewer particles out of range are checked," +
+                        " but more cells need to be visited." +
+                        "\nValues of 2 or 3 can be faster for dense clusters.");
+
+                if (ImGui.beginCombo("Grid Order", appSettings.containerOrder)) {
+                    for (ContainerOrder order : ContainerOrder.values()) {
+                        if (ImGui.selectable(order.name(), order.name().equals(appSettings.containerOrder))) {
+                            appSettings.containerOrder = order.name();
+                            loop.enqueue(() -> physics.containerOrder = order);
+                        }
+                    }
+                    ImGui.endCombo();
+                }
+                ImGuiUtils.helpMarker("The order in which the cells of the grid (and their particles) are stored in memory." +
+                        "\nMORTON and HILBERT keep nearby cells close together in memory," +
+                        " which can make better use of the CPU cache.");
 
                 ImGui.popItemWidth();
             }
@@ -991,6 +1272,17 @@ public class Main extends App {
             ImGui.end();
         }
 
+        // PERFORMANCE
+        if (showPerformanceWindow.get()) {
+            ImGui.setNextWindowSize(-1, -1, ImGuiCond.FirstUseEver);
+            ImGui.setNextWindowPos(width / 2f, height / 2f, ImGuiCond.FirstUseEver, 0.5f, 0.5f);
+            if (ImGui.begin("Performance", showPerformanceWindow,
+                    ImGuiWindowFlags.AlwaysAutoResize | ImGuiWindowFlags.NoNavFocus | ImGuiWindowFlags.NoCollapse)) {
+                buildPerformanceGui();
+            }
+            ImGui.end();
+        }
+
         // PHYSICS NOT REACTING
         long physicsNotReactingSince = System.currentTimeMillis() - physicsSnapshot.snapshotTime;
         boolean physicsNotReacting = physicsNotReactingSince > physicsNotReactingThreshold;
@@ -1240,10 +1532,237 @@ public class Main extends App {
                 showGraphicsWindow.set(true);
             }
 
+            if (ImGui.menuItem("Performance..")) {
+                showPerformanceWindow.set(true);
+            }
+
             ImGui.endMenu();
         }
     }
 
+    private void buildPerformanceGui() {
+        String[] segmentLabels = {"Sort", "Velocity", "Position", "Snapshot", "Upload", "Render"};
+        TimeHistory[] histories = {
+                physicsPhaseTimes[UpdatePhase.SORT.ordinal()],
+                physicsPhaseTimes[UpdatePhase.VELOCITY.ordinal()],
+                physicsPhaseTimes[UpdatePhase.POSITION.ordinal()],
+                snapshotTakeTimes,
+                uploadTimes,
+                renderTimes,
+        };
+        String[] rowLabels = {"p50", "p95", "p99"};
+
+        double[][] values = new double[rowLabels.length][histories.length];
+        for (int segment = 0; segment < histories.length; segment++) {
+            double[] percentiles = histories[segment].getPercentilesMillis(0.5, 0.95, 0.99);
+            for (int row = 0; row < rowLabels.length; row++) {
+                values[row][segment] = percentiles[row];
+            }
+        }
+        double maxValue = FRAME_BUDGET_MILLIS;
+        for (double[] row : values) {
+            maxValue = Math.max(maxValue, Arrays.stream(row).sum());
+        }
+
+        ImGui.text(String.format("Physics FPS: %s", loop.pause ? "paused" : String.format("%.0f", loop.getAvgFramerate())));
+        ImGui.text(String.format("Graphics FPS: %.0f", renderClock.getAvgFramerate()));
+
+        ImGuiBarGraph.drawStacked(360, 60, palettes.getActive(), rowLabels, segmentLabels,
+                values, maxValue, FRAME_BUDGET_MILLIS, "ms");
+        ImGuiUtils.helpMarker(String.format("Percentiles of the last %d steps / frames.", Physics.PHASE_HISTORY_SIZE) +
+                "\nSort, Velocity and Position are the phases of a physics step." +
+                "\nSnapshot is copying the particles for the graphics (also in the physics thread)." +
+                "\nUpload (to the GPU) and Render are in the graphics thread." +
+                "\nAs the physics runs in parallel to the graphics, the sum is an upper bound." +
+                String.format("\nThe vertical line marks %.1f ms (60 FPS).", FRAME_BUDGET_MILLIS));
+
+        if (ImGui.beginTable("##phase times", 1 + rowLabels.length, ImGuiTableFlags.SizingFixedFit)) {
+            ImGui.tableNextRow();
+            ImGui.tableSetColumnIndex(0);
+            ImGui.text("ms");
+            for (int row = 0; row < rowLabels.length; row++) {
+                ImGui.tableSetColumnIndex(1 + row);
+                ImGui.text(rowLabels[row]);
+            }
+            for (int segment = 0; segment < segmentLabels.length; segment++) {
+                ImGui.tableNextRow();
+                ImGui.tableSetColumnIndex(0);
+                ImGui.text(segmentLabels[segment]);
+                for (int row = 0; row < rowLabels.length; row++) {
+                    ImGui.tableSetColumnIndex(1 + row);
+                    ImGui.text(String.format("%.2f", values[row][segment]));
+                }
+            }
+            ImGui.endTable();
+        }
+
+        if (ImGui.treeNode("Threads and Containers")) {
+            buildLoadStatsGui();
+            ImGui.treePop();
+        }
+
+        if (ImGui.treeNode("Pair Census")) {
+            buildPairCensusGui();
+            ImGui.treePop();
+        }
+    }
+
+    private void buildPairCensusGui() {
+        if (ImGui.checkbox("Count Pairs", physics.recordPairCensus)) {
+            final boolean record = !physics.recordPairCensus;
+            loop.enqueue(() -> physics.recordPairCensus = record);
+        }
+        ImGuiUtils.helpMarker("Counts the pairs of particles that are checked when computing the velocities." +
+                "\nOnly works with the force engines SCALAR, SINGLE_PRECISION and NEIGHBOR_LIST." +
+                "\nThis slows down the physics a bit.");
+
+        PairCensus census = physics.getPairCensus();
+        if (!physics.recordPairCensus || census == null) return;
+        if (!census.isAvailable()) {
+            ImGui.text(String.format("Not available for the force engine %s.", census.forceEngine()));
+            return;
+        }
+
+        ImGui.text(String.format("Candidates: %d", census.candidates()));
+        ImGui.text(String.format("Accepted: %d (%.1f%%)", census.accepted(), 100 * census.acceptanceRatio()));
+        ImGuiUtils.helpMarker("Pairs that were closer than rmax." +
+                "\nIf this is much lower than the ~35% that containers of size rmax would give," +
+                " the containers are too large for the current rmax.");
+        ImGui.text(String.format("Rejected: %d", census.rejected()));
+        ImGui.text(String.format("Inside Core: %d (%.1f%% of accepted)", census.insideCore(),
+                census.accepted() > 0 ? 100.0 * census.insideCore() / census.accepted() : 0));
+        ImGuiUtils.helpMarker("Accepted pairs closer than beta * rmax, where the particles repel each other.");
+
+        // accepted pairs per type pair, as a grid shaded by count
+        int nTypes = census.typeCount();
+        long maxCount = 1;
+        for (long count : census.typePairs()) {
+            maxCount = Math.max(maxCount, count);
+        }
+        float cellSize = Math.max(4, Math.min(16, 320f / nTypes));
+        ImDrawList drawList = ImGui.getWindowDrawList();
+        ImVec2 origin = new ImVec2();
+        ImGui.getCursorScreenPos(origin);
+        for (int i = 0; i < nTypes; i++) {
+            for (int j = 0; j < nTypes; j++) {
+                long count = census.getTypePairs(i, j);
+                float x = origin.x + j * cellSize;
+                float y = origin.y + i * cellSize;
+                float brightness = (float) count / maxCount;
+                drawList.addRectFilled(x, y, x + cellSize - 1, y + cellSize - 1,
+                        ImGui.colorConvertFloat4ToU32(brightness, brightness, brightness, 1));
+                if (ImGui.isMouseHoveringRect(x, y, x + cellSize, y + cellSize)) {
+                    ImGui.setTooltip(String.format("type %d <- type %d: %d (%.1f%%)", i, j, count,
+                            census.accepted() > 0 ? 100.0 * count / census.accepted() : 0));
+                }
+            }
+        }
+        ImGui.dummy(nTypes * cellSize, nTypes * cellSize);
+        ImGuiUtils.helpMarker("Accepted pairs per type pair, in the same layout as the matrix." +
+                "\nBrighter cells are where most of the compute goes.");
+    }
+
+    private void buildLoadStatsGui() {
+        if (ImGui.checkbox("Record Load Statistics", physics.recordLoadStats)) {
+            final boolean record = !physics.recordLoadStats;
+            loop.enqueue(() -> physics.recordLoadStats = record);
+        }
+        ImGuiUtils.helpMarker("Records how the work of each step is spread over the threads," +
+                " and how many particles are in each container." +
+                "\nThis slows down the physics a bit.");
+
+        LoadStats stats = physics.getLoadStats();
+        if (!physics.recordLoadStats || stats == null) return;
+
+        ImGui.text(String.format("Imbalance: %.2f", stats.imbalance()));
+        ImGuiUtils.helpMarker("Busy time of the slowest thread divided by the average busy time." +
+                "\n1.00 means that all threads had the same amount of work.");
+
+        int threads = stats.threadCount();
+        String[] threadLabels = new String[threads];
+        double[][] threadTimes = new double[threads][2];
+        double maxTime = 0;
+        for (int thread = 0; thread < threads; thread++) {
+            threadLabels[thread] = "#" + thread;
+            threadTimes[thread][0] = stats.busyNanos()[thread] / 1e6;
+            threadTimes[thread][1] = stats.idleNanos()[thread] / 1e6;
+            maxTime = Math.max(maxTime, threadTimes[thread][0] + threadTimes[thread][1]);
+        }
+        ImGuiBarGraph.drawStacked(360, Math.min(200, 16 * threads), palettes.getActive(), threadLabels,
+                new String[]{"busy", "idle"}, threadTimes, maxTime, -1, "ms");
+        ImGuiUtils.helpMarker("Time per thread in the last step." +
+                "\nIdle is the time spent waiting for the other threads to finish.");
+
+        if (ImGui.beginTable("##thread load", 4, ImGuiTableFlags.SizingFixedFit)) {
+            ImGui.tableNextRow();
+            String[] headers = {"Thread", "Busy ms", "Idle ms", "Pairs"};
+            for (int column = 0; column < headers.length; column++) {
+                ImGui.tableSetColumnIndex(column);
+                ImGui.text(headers[column]);
+            }
+            for (int thread = 0; thread < threads; thread++) {
+                ImGui.tableNextRow();
+                ImGui.tableSetColumnIndex(0);
+                ImGui.text(threadLabels[thread]);
+                ImGui.tableSetColumnIndex(1);
+                ImGui.text(String.format("%.2f", threadTimes[thread][0]));
+                ImGui.tableSetColumnIndex(2);
+                ImGui.text(String.format("%.2f", threadTimes[thread][1]));
+                ImGui.tableSetColumnIndex(3);
+                ImGui.text(String.valueOf(stats.pairsEvaluated()[thread]));
+            }
+            ImGui.endTable();
+        }
+
+        ImGui.text(String.format("Particles per Container: mean %.1f, p50 %d, p90 %d, p99 %d, max %d",
+                stats.meanOccupancy(), stats.medianOccupancy(), stats.p90Occupancy(), stats.p99Occupancy(),
+                stats.maxOccupancy()));
+        if (ImGui.checkbox("Container Heat Map", showCellHeatMap)) {
+            showCellHeatMap ^= true;
+        }
+        ImGuiUtils.helpMarker(String.format("Shows the number of particles in each of the %d x %d containers." +
+                "\nIf there are more than %d containers per row, they are combined.",
+                stats.nx(), stats.ny(), HEAT_MAP_MAX_RESOLUTION));
+    }
+
+    /**
+     * Draws the number of particles per container as colored rectangles over the world,
+     * from transparent blue (few) to red (many).
+     */
+    private void drawCellHeatMap(LoadStats stats) {
+        int blockSize = Math.max(1, (int) Math.ceil(Math.max(stats.nx(), stats.ny()) / (double) HEAT_MAP_MAX_RESOLUTION));
+        int bx = (stats.nx() + blockSize - 1) / blockSize;
+        int by = (stats.ny() + blockSize - 1) / blockSize;
+        int[] blockCounts = new int[bx * by];
+        int maxCount = 0;
+        for (int cy = 0; cy < stats.ny(); cy++) {
+            for (int cx = 0; cx < stats.nx(); cx++) {
+                int k = cx / blockSize + cy / blockSize * bx;
+                blockCounts[k] += stats.cellCounts()[cx + cy * stats.nx()];
+                maxCount = Math.max(maxCount, blockCounts[k]);
+            }
+        }
+        if (maxCount == 0) return;
+
+        ScreenCoordinates screen = new ScreenCoordinates(camPos, camSize, width, height);
+        ImDrawList drawList = ImGui.getBackgroundDrawList();
+        for (int y = 0; y < by; y++) {
+            for (int x = 0; x < bx; x++) {
+                int count = blockCounts[x + y * bx];
+                if (count == 0) continue;
+                float t = count / (float) maxCount;
+                // the last containers in each row and column extend to the border
+                Vector2d topLeft = screen.worldToScreen(new Vector3d(
+                        x * blockSize * stats.cellSize(), y * blockSize * stats.cellSize(), 0));
+                Vector2d bottomRight = screen.worldToScreen(new Vector3d(
+                        x == bx - 1 ? 1 : (x + 1) * blockSize * stats.cellSize(),
+                        y == by - 1 ? 1 : (y + 1) * blockSize * stats.cellSize(), 0));
+                drawList.addRectFilled((float) topLeft.x, (float) topLeft.y, (float) bottomRight.x, (float) bottomRight.y,
+                        ImGui.colorConvertFloat4ToU32(t, 0, 1 - t, 0.1f + 0.5f * t));
+            }
+        }
+    }
+
     private void loadSaveCards() {
         List<Path> saves;
         try {
@@ -1256,23 +1775,12 @@ public class Main extends App {
     }
 
     private void saveState(File file) {
+        StateIOEvent event = new StateIOEvent();
+        event.begin();
         try (FileOutputStream fileOutputStream = new FileOutputStream(file)) {
             try (ZipOutputStream zip = new ZipOutputStream(fileOutputStream)) {
 
-                // PARTICLES
-                zip.putNextEntry(new ZipEntry("particles.tsv"));
-                ParticlesIO.saveParticles(physics.particles, zip);
-                zip.closeEntry();
-
-                // PHYSICS SETTINGS
-                zip.putNextEntry(new ZipEntry("physics.toml"));
-                PhysicsSettingsToml.fromPhysicsSettings(physics.settings).save(zip);
-                zip.closeEntry();
-
-                // MATRIX
-                zip.putNextEntry(new ZipEntry("matrix.tsv"));
-                MatrixIO.saveMatrix(physics.settings.matrix, zip);
-                zip.closeEntry();
+                StateIO.saveState(physics, zip);
 
                 // IMAGE
                 if (saveImage != null) {
@@ -1294,57 +1802,37 @@ public class Main extends App {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        commitStateIOEvent(event, "save", file);
         requestedSaveCardsLoading.set(true);
     }
 
     /**
-     * Load the state from a ZIP file.
-     * The zip file can contain the following files:
-     * <ul>
-     *     <li>particles.tsv</li>
-     *     <li>physics.toml</li>
-     *     <li>matrix.tsv</li>
-     * </ul>
-     * If a file is missing, the existing state will be kept for that part.
-     * Currently, this might lead to an error, e.g. if the matrix size
-     * doesn't match the particle types.
+     * Load the state from a ZIP file, see {@link StateIO#loadState}.
      *
      * @param file a zip file
      */
     private void loadState(File file) {
+        StateIOEvent event = new StateIOEvent();
+        event.begin();
         try (ZipInputStream zip = new ZipInputStream(new FileInputStream(file))) {
-            ZipEntry entry;
-            while ((entry = zip.getNextEntry()) != null) {
-                switch (entry.getName()) {
-                    case "particles.tsv": {
-                        physics.particles = ParticlesIO.loadParticles(zip);
-                        break;
-                    }
-                    case "physics.toml": {
-                        PhysicsSettingsToml toml = new PhysicsSettingsToml();
-                        toml.load(zip);
-                        toml.toPhysicsSettings(physics.settings);  // copy values
-                        break;
-                    }
-                    case "matrix.tsv": {
-                        physics.settings.matrix = MatrixIO.loadMatrix(zip);
-                        physics.ensureTypes();  // in case the matrix size changed
-                        break;
-                    }
-                    case "img.png": {
-                        // ignore
-                        break;
-                    }
-                    default: {
-                        System.err.println("Unknown file in ZIP: " + entry.getName());
-                        break;
-                    }
-                }
-                zip.closeEntry();
-            }
+            StateIO.loadState(physics, zip);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        commitStateIOEvent(event, "load", file);
+    }
+
+    /**
+     * Must be called from the physics loop.
+     */
+    private void commitStateIOEvent(StateIOEvent event, String operation, File file) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.file = file.getPath();
+            event.set(physics);
+            event.commit();
+        }
     }
 
     private void resetCamera(boolean fit) {
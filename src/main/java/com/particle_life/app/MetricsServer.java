@@ -0,0 +1,203 @@
+package com.particle_life.app;
+
+import com.particle_life.backend.Histogram;
+import com.particle_life.backend.Loop;
+import com.particle_life.backend.PairCensus;
+import com.particle_life.backend.Physics;
+import com.particle_life.backend.UpdatePhase;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Serves metrics of a running simulation at <code>http://localhost:&lt;port&gt;/metrics</code>
+ * in the Prometheus text format, so that they can be collected for dashboards.
+ * <p>
+ * Everything is read when the metrics are requested, in the thread of the HTTP server,
+ * without locking anything. The physics thread only increments some counters
+ * (see {@link Physics#getPhaseHistogram(UpdatePhase)}).
+ * As the values are read while the simulation continues, they may be slightly inconsistent with each other.
+ * <p>
+ * Only the physics is required, the other sources can be left <code>null</code> if they don't exist.
+ */
+class MetricsServer {
+
+    /**
+     * Returns the current physics, which may be replaced while the server runs.
+     */
+    private final Supplier<? extends Physics> physics;
+    /**
+     * Returns the number of particles of each type, or <code>null</code> if this is not known right now.
+     */
+    Supplier<int[]> typeCounts = null;
+    /**
+     * Returns when the last snapshot for the graphics was taken (unix time in milliseconds).
+     */
+    LongSupplier snapshotTime = null;
+    /**
+     * Returns the loop that runs the physics.
+     */
+    Supplier<Loop> loop = null;
+
+    private HttpServer server = null;
+
+    // for computing the steps per second between two requests (only accessed by the server thread):
+    private long lastRequestTime;
+    private long lastStepCount;
+
+    MetricsServer(Supplier<? extends Physics> physics) {
+        this.physics = physics;
+    }
+
+    /**
+     * Starts serving in a background thread. Only connections from this machine are accepted.
+     */
+    void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(null);  // a single thread is enough
+        lastRequestTime = System.nanoTime();
+        lastStepCount = physics.get().getStepCount();
+        server.start();
+    }
+
+    void stop() {
+        if (server == null) return;
+        server.stop(0);
+        server = null;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = collect().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    String collect() {
+        StringBuilder sb = new StringBuilder();
+        Physics physics = this.physics.get();
+
+        long now = System.nanoTime();
+        long stepCount = physics.getStepCount();
+        double stepsPerSecond = now > lastRequestTime && stepCount >= lastStepCount
+                ? (stepCount - lastStepCount) * 1e9 / (now - lastRequestTime)
+                : 0;
+        lastRequestTime = now;
+        lastStepCount = stepCount;
+
+        header(sb, "particle_life_steps_total", "counter", "Number of physics steps.");
+        sample(sb, "particle_life_steps_total", "", stepCount);
+        header(sb, "particle_life_steps_per_second", "gauge", "Physics steps per second since the previous request.");
+        sample(sb, "particle_life_steps_per_second", "", stepsPerSecond);
+
+        header(sb, "particle_life_phase_duration_seconds", "histogram", "Duration of the phases of a physics step.");
+        for (UpdatePhase phase : UpdatePhase.values()) {
+            Histogram histogram = physics.getPhaseHistogram(phase);
+            String phaseLabel = "phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"";
+            long cumulativeCount = 0;
+            for (int bucket = 0; bucket < histogram.getBucketCount(); bucket++) {
+                cumulativeCount += histogram.getCount(bucket);
+                sample(sb, "particle_life_phase_duration_seconds_bucket",
+                        phaseLabel + ",le=\"" + formatValue(histogram.getUpperBoundNanos(bucket) / 1e9) + "\"",
+                        cumulativeCount);
+            }
+            cumulativeCount += histogram.getCount(histogram.getBucketCount());
+            sample(sb, "particle_life_phase_duration_seconds_bucket", phaseLabel + ",le=\"+Inf\"", cumulativeCount);
+            sample(sb, "particle_life_phase_duration_seconds_sum", phaseLabel, histogram.getSumNanos() / 1e9);
+            sample(sb, "particle_life_phase_duration_seconds_count", phaseLabel, cumulativeCount);
+        }
+
+        header(sb, "particle_life_particles", "gauge", "Number of particles.");
+        sample(sb, "particle_life_particles", "", physics.particles.size());
+
+        PairCensus census = physics.getPairCensus();
+        if (census != null) {
+            header(sb, "particle_life_pair_census_available", "gauge",
+                    "1 if the pairs are counted, 0 if the force engine can't count them.");
+            sample(sb, "particle_life_pair_census_available", "", census.isAvailable() ? 1 : 0);
+        }
+        if (census != null && census.isAvailable()) {
+            header(sb, "particle_life_pairs", "gauge", "Pairs of particles checked in the last counted step.");
+            sample(sb, "particle_life_pairs", "result=\"accepted\"", census.accepted());
+            sample(sb, "particle_life_pairs", "result=\"rejected\"", census.rejected());
+            header(sb, "particle_life_pairs_inside_core", "gauge", "Accepted pairs inside the repulsive core in the last counted step.");
+            sample(sb, "particle_life_pairs_inside_core", "", census.insideCore());
+        }
+
+        int[] typeCounts = this.typeCounts != null ? this.typeCounts.get() : null;
+        if (typeCounts != null) {
+            header(sb, "particle_life_type_particles", "gauge", "Number of particles of each type.");
+            for (int type = 0; type < typeCounts.length; type++) {
+                sample(sb, "particle_life_type_particles", "type=\"" + type + "\"", typeCounts[type]);
+            }
+        }
+
+        if (snapshotTime != null) {
+            header(sb, "particle_life_snapshot_age_seconds", "gauge", "Time since the graphics got new particle data.");
+            sample(sb, "particle_life_snapshot_age_seconds", "",
+                    Math.max(0, System.currentTimeMillis() - snapshotTime.getAsLong()) / 1000.0);
+        }
+
+        Loop loop = this.loop != null ? this.loop.get() : null;
+        if (loop != null) {
+            header(sb, "particle_life_loop_queue_depth", "gauge", "Commands waiting for the physics loop.");
+            sample(sb, "particle_life_loop_queue_depth", "", loop.getQueueSize());
+        }
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        header(sb, "jvm_memory_heap_used_bytes", "gauge", "Used heap memory.");
+        sample(sb, "jvm_memory_heap_used_bytes", "", heap.getUsed());
+        header(sb, "jvm_memory_heap_committed_bytes", "gauge", "Committed heap memory.");
+        sample(sb, "jvm_memory_heap_committed_bytes", "", heap.getCommitted());
+        header(sb, "jvm_memory_heap_max_bytes", "gauge", "Maximum heap memory, or -1 if undefined.");
+        sample(sb, "jvm_memory_heap_max_bytes", "", heap.getMax());
+
+        header(sb, "jvm_gc_collections_total", "counter", "Number of garbage collections.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(sb, "jvm_gc_collections_total", "gc=\"" + escape(gc.getName()) + "\"", gc.getCollectionCount());
+        }
+        header(sb, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collections.");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(sb, "jvm_gc_collection_seconds_total", "gc=\"" + escape(gc.getName()) + "\"",
+                    gc.getCollectionTime() / 1000.0);
+        }
+
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -27,7 +27,7 @@ class ParticleRenderer {
         vboT = glGenBuffers();
     }
 
-    void bufferParticleData(ParticleShader particleShader, double[] x, double[] v, int[] types) {
+    void bufferParticleData(ParticleShader particleShader, float[] x, float[] v, int[] types) {
 
         glBindVertexArray(vao);
 
@@ -43,12 +43,12 @@ class ParticleRenderer {
 
             if (particleShader.xAttribLocation != -1) {
                 glBindBuffer(GL_ARRAY_BUFFER, vboX);
-                glVertexAttribPointer(particleShader.xAttribLocation, 3, GL_DOUBLE, false, 0, 0);
+                glVertexAttribPointer(particleShader.xAttribLocation, 3, GL_FLOAT, false, 0, 0);
                 glEnableVertexAttribArray(particleShader.xAttribLocation);
             }
             if (particleShader.vAttribLocation != -1) {
                 glBindBuffer(GL_ARRAY_BUFFER, vboV);
-                glVertexAttribPointer(particleShader.vAttribLocation, 3, GL_DOUBLE, false, 0, 0);
+                glVertexAttribPointer(particleShader.vAttribLocation, 3, GL_FLOAT, false, 0, 0);
                 glEnableVertexAttribArray(particleShader.vAttribLocation);
             }
             if (particleShader.typeAttribLocation != -1) {
@@ -0,0 +1,11 @@
+package com.particle_life.app;
+
+import com.particle_life.backend.SimulationEvent;
+import jdk.jfr.*;
+
+@Name("com.particle_life.ParticleUpload")
+@Label("Particle Upload")
+@Category({"Particle Life", "Graphics"})
+@Description("Uploading a snapshot of the particles to the GPU, see ParticleRenderer.bufferParticleData()")
+class ParticleUploadEvent extends SimulationEvent {
+}
@@ -1,61 +1,123 @@
 package com.particle_life.app;
 
-import com.particle_life.backend.LoadDistributor;
-import com.particle_life.backend.Particle;
-import com.particle_life.backend.PhysicsSettings;
+import com.particle_life.backend.*;
 
 class PhysicsSnapshot {
 
-    private static final int PREFERRED_NUMBER_OF_THREADS = 12;
+    /**
+     * Number of threads used for copying the particles.
+     */
+    int preferredNumberOfThreads = 12;
 
-    double[] positions;
-    double[] velocities;
+    /**
+     * Single precision is enough for rendering, and halves the amount of data
+     * that has to be copied and uploaded to the GPU.
+     */
+    float[] positions;
+    float[] velocities;
     int[] types;
 
     PhysicsSettings settings;
     int particleCount;
+    int sleepingCount;
     int[] typeCount;
+    int threadCount;
+    int cellCount;
+    /**
+     * Only counted while the events are recorded, as this takes some time.
+     *
+     * @see Physics#countCandidatePairs()
+     */
+    long pairsEvaluated;
 
     /**
      * unix timestamp from when this snapshot was taken (milliseconds)
      */
     long snapshotTime;
 
-    void take(ExtendedPhysics p, LoadDistributor loadDistributor) {
+    /**
+     * Copies of {@link Physics#getPhaseTimes(UpdatePhase)}, indexed by {@link UpdatePhase#ordinal()}.
+     */
+    final TimeHistory[] phaseTimes = new TimeHistory[UpdatePhase.values().length];
+    /**
+     * How long the previous snapshots took, copied from the history passed to
+     * {@link #take(ExtendedPhysics, LoadDistributor, TimeHistory)}.
+     */
+    final TimeHistory takeTimes = new TimeHistory(Physics.PHASE_HISTORY_SIZE);
+
+    PhysicsSnapshot() {
+        for (int i = 0; i < phaseTimes.length; i++) {
+            phaseTimes[i] = new TimeHistory(Physics.PHASE_HISTORY_SIZE);
+        }
+    }
+
+    /**
+     * @param takeHistory durations of the previous snapshots, which the duration of this one is added to.
+     *                    This can be shared by multiple snapshots that are taken in turns.
+     *                    If it is <code>null</code>, the durations aren't recorded.
+     */
+    void take(ExtendedPhysics p, LoadDistributor loadDistributor, TimeHistory takeHistory) {
+        long startTime = System.nanoTime();
+        SnapshotEvent event = new SnapshotEvent();
+        event.begin();
 
         write(p.particles, loadDistributor);
 
         settings = p.settings.deepCopy();
 
-        particleCount = p.particles.length;
+        particleCount = p.particles.size();
+        sleepingCount = p.getSleepingCount();
         typeCount = p.getTypeCount();
+        threadCount = p.preferredNumberOfThreads;
+        cellCount = p.getContainerCount();
+
+        for (UpdatePhase phase : UpdatePhase.values()) {
+            phaseTimes[phase.ordinal()].set(p.getPhaseTimes(phase));
+        }
 
         snapshotTime = System.currentTimeMillis();
+        if (takeHistory != null) {
+            takeHistory.add(System.nanoTime() - startTime);
+            takeTimes.set(takeHistory);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.set(p);
+            pairsEvaluated = event.pairsEvaluated;
+            event.commit();
+        } else {
+            pairsEvaluated = 0;
+        }
     }
 
-    private void write(Particle[] particles, LoadDistributor loadDistributor) {
-        int n = particles.length;
+    private void write(ParticleStore particles, LoadDistributor loadDistributor) {
+        int n = particles.size();
 
         if (types == null || types.length != n) {
-            positions = new double[n * 3];
-            velocities = new double[n * 3];
+            positions = new float[n * 3];
+            velocities = new float[n * 3];
             types = new int[n];
         }
 
-        loadDistributor.distributeLoadEvenly(n, PREFERRED_NUMBER_OF_THREADS, i -> {
-            Particle p = particles[i];
+        final double[] x = particles.x;
+        final double[] y = particles.y;
+        final double[] vx = particles.vx;
+        final double[] vy = particles.vy;
+        final int[] type = particles.type;
 
+        loadDistributor.distributeLoadEvenly(n, preferredNumberOfThreads, i -> {
             final int i3 = 3 * i;
 
-            positions[i3] = p.position.x;
-            positions[i3 + 1] = p.position.y;
-            positions[i3 + 2] = p.position.z;
+            positions[i3] = (float) x[i];
+            positions[i3 + 1] = (float) y[i];
+            positions[i3 + 2] = 0;
 
-            velocities[i3] = p.velocity.x;
-            velocities[i3 + 1] = p.velocity.y;
-            velocities[i3 + 2] = p.velocity.z;
+            velocities[i3] = (float) vx[i];
+            velocities[i3 + 1] = (float) vy[i];
+            velocities[i3 + 2] = 0;
 
-            types[i] = p.type;
+            types[i] = type[i];
 
             return true;
         });
@@ -0,0 +1,288 @@
+package com.particle_life.app;
+
+import com.particle_life.backend.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Measures how the simulation scales with the number of threads, without graphics (like {@link HeadlessMain}).
+ * <p>
+ * <b>Strong scaling:</b> The number of particles stays the same for all thread counts.
+ * Ideally, the time per step is halved when the number of threads is doubled.
+ * <p>
+ * <b>Weak scaling:</b> The number of particles grows with the number of threads.
+ * Ideally, the time per step stays the same.
+ * To keep the density (i.e. the number of neighbors per particle) constant,
+ * <code>rmax</code> is scaled by <code>1 / sqrt(threads)</code>,
+ * which is the same as growing the space while keeping <code>rmax</code>.
+ * <p>
+ * For each run, the time per step is split into the phases of {@link Physics#update()}
+ * and the time needed for taking a {@link PhysicsSnapshot}.
+ * The speedup and efficiency are relative to the first thread count of the sweep.
+ * <p>
+ * Example:
+ * <pre>
+ * ./gradlew runScalingStudy --args="--threads 1,2,4,8 --mode strong --particles 200000"
+ * </pre>
+ */
+public class ScalingStudy {
+
+    private static final String USAGE = """
+            Usage: ScalingStudy [options]
+
+              --mode <mode>                 strong, weak or both (default: both)
+              --threads <a,b,...>           thread counts to compare (default: powers of 2 up to the number of processors)
+              --particles <n>               number of particles for strong scaling (default: 100000)
+              --particles-per-thread <n>    number of particles per thread for weak scaling (default: 25000)
+              --rmax <r>                    rmax for strong scaling and for one thread in weak scaling (default: 0.02)
+              --types <n>                   number of types (default: 7)
+              --steps <n>                   measured steps per run (default: 100)
+              --warmup <n>                  steps per run before measuring (default: 20)
+              --engine <name>               one of %s (default: SCALAR)
+              --seed <n>                    seed for the matrix and particles (default: 0)
+              --output <file>               also write the tables to this file (tab-separated)
+            """;
+
+    enum Mode {
+        STRONG, WEAK, BOTH
+    }
+
+    /**
+     * Averages of one run, all durations per step in milliseconds.
+     */
+    record Result(String mode, int threads, int particles, double rmax,
+                  double stepMillis, double speedup, double efficiency,
+                  double sortMillis, double velocityMillis, double positionMillis, double snapshotMillis) {
+
+        static final String HEADER = "mode\tthreads\tparticles\trmax\tstep_ms\tspeedup\tefficiency"
+                + "\tsort_ms\tvelocity_ms\tposition_ms\tsnapshot_ms";
+
+        String toLine() {
+            return String.format(Locale.ROOT, "%s\t%d\t%d\t%.5f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f",
+                    mode, threads, particles, rmax, stepMillis, speedup, efficiency,
+                    sortMillis, velocityMillis, positionMillis, snapshotMillis);
+        }
+
+        String toTableRow() {
+            return String.format(Locale.ROOT, "%7d %10d %8.5f %9.3f %8.2f %10.1f%% %9.3f %9.3f %9.3f %9.3f",
+                    threads, particles, rmax, stepMillis, speedup, efficiency * 100,
+                    sortMillis, velocityMillis, positionMillis, snapshotMillis);
+        }
+    }
+
+    private static final String TABLE_HEADER = String.format("%7s %10s %8s %9s %8s %11s %9s %9s %9s %9s",
+            "threads", "particles", "rmax", "step ms", "speedup", "efficiency",
+            "sort ms", "vel. ms", "pos. ms", "snap. ms");
+
+    public static void main(String[] args) {
+        ScalingStudy study = new ScalingStudy();
+        try {
+            study.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(usage());
+            System.exit(1);
+        }
+        if (study.help) {
+            System.out.print(usage());
+            return;
+        }
+
+        try {
+            study.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static String usage() {
+        return USAGE.formatted(String.join(", ", Arrays.stream(ForceEngine.values()).map(Enum::name).toList()));
+    }
+
+    // options:
+    private boolean help = false;
+    private Mode mode = Mode.BOTH;
+    private int[] threadCounts = defaultThreadCounts();
+    private int particleCount = 100000;
+    private int particlesPerThread = 25000;
+    private double rmax = 0.02;
+    private int typeCount = 7;
+    private long steps = 100;
+    private long warmupSteps = 20;
+    private ForceEngine forceEngine = ForceEngine.SCALAR;
+    private long seed = 0;
+    private File outputFile = null;
+
+    /**
+     * @return 1, 2, 4, ... up to the number of processors, which is always included
+     */
+    private static int[] defaultThreadCounts() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int threads = 1; threads < processors; threads *= 2) {
+            counts.add(threads);
+        }
+        counts.add(processors);
+        return counts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int k = 0; k < args.length; k++) {
+            String arg = args[k];
+            switch (arg) {
+                case "--help", "-h" -> help = true;
+                case "--mode" -> {
+                    String name = HeadlessMain.value(args, ++k, arg);
+                    try {
+                        mode = Mode.valueOf(name.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown mode: " + name);
+                    }
+                }
+                case "--threads" -> {
+                    String[] values = HeadlessMain.value(args, ++k, arg).split(",");
+                    threadCounts = new int[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        threadCounts[i] = (int) HeadlessMain.parseLong(values[i].trim(), arg);
+                    }
+                }
+                case "--particles" -> particleCount = (int) HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--particles-per-thread" -> particlesPerThread = (int) HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--rmax" -> rmax = HeadlessMain.parseDouble(HeadlessMain.value(args, ++k, arg), arg);
+                case "--types" -> typeCount = (int) HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--steps" -> steps = HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--warmup" -> warmupSteps = HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--engine" -> {
+                    String name = HeadlessMain.value(args, ++k, arg);
+                    try {
+                        forceEngine = ForceEngine.valueOf(name.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown force engine: " + name);
+                    }
+                }
+                case "--seed" -> seed = HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--output" -> outputFile = new File(HeadlessMain.value(args, ++k, arg));
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        for (int threads : threadCounts) {
+            if (threads < 1) throw new IllegalArgumentException("--threads must be at least 1.");
+        }
+        if (particleCount < 1) throw new IllegalArgumentException("--particles must be at least 1.");
+        if (particlesPerThread < 1) throw new IllegalArgumentException("--particles-per-thread must be at least 1.");
+        if (rmax <= 0 || rmax > 1) throw new IllegalArgumentException("--rmax must be in (0, 1].");
+        if (typeCount < 1) throw new IllegalArgumentException("--types must be at least 1.");
+        if (steps < 1) throw new IllegalArgumentException("--steps must be at least 1.");
+        if (warmupSteps < 0) throw new IllegalArgumentException("--warmup must not be negative.");
+    }
+
+    private void run() throws IOException {
+        List<Result> results = new ArrayList<>();
+        if (mode != Mode.WEAK) {
+            System.out.printf(Locale.ROOT, "Strong scaling (%d particles):%n", particleCount);
+            results.addAll(sweep(Mode.STRONG));
+            System.out.println();
+        }
+        if (mode != Mode.STRONG) {
+            System.out.printf(Locale.ROOT, "Weak scaling (%d particles per thread):%n", particlesPerThread);
+            results.addAll(sweep(Mode.WEAK));
+            System.out.println();
+        }
+
+        if (outputFile != null) {
+            File outputDir = outputFile.getAbsoluteFile().getParentFile();
+            if (outputDir != null) Files.createDirectories(outputDir.toPath());
+            try (PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
+                writer.println(Result.HEADER);
+                for (Result result : results) {
+                    writer.println(result.toLine());
+                }
+            }
+            System.out.println("Results written to " + outputFile);
+        }
+    }
+
+    /**
+     * Runs all thread counts in the given mode and prints the table while doing so.
+     */
+    private List<Result> sweep(Mode mode) {
+        System.out.println(TABLE_HEADER);
+        List<Result> results = new ArrayList<>();
+        Result base = null;
+        for (int threads : threadCounts) {
+            Result result = measure(mode, threads, base);
+            if (base == null) base = result;
+            results.add(result);
+            System.out.println(result.toTableRow());
+        }
+        return results;
+    }
+
+    /**
+     * @param base result of the first thread count in this sweep, or <code>null</code> if this is the first
+     */
+    private Result measure(Mode mode, int threads, Result base) {
+        int n;
+        double r;
+        if (mode == Mode.STRONG) {
+            n = particleCount;
+            r = rmax;
+        } else {
+            n = particlesPerThread * threads;
+            r = rmax / Math.sqrt(threads);
+        }
+
+        ExtendedPhysics physics = HeadlessMain.createRandomPhysics(new Random(seed), new DefaultAccelerator(), n, typeCount);
+        physics.forceEngine = forceEngine;
+        physics.preferredNumberOfThreads = threads;
+        physics.settings.rmax = r;
+        physics.settings.dt = 0.02;
+
+        LoadDistributor snapshotLoadDistributor = new LoadDistributor();
+        PhysicsSnapshot snapshot = new PhysicsSnapshot();
+        snapshot.preferredNumberOfThreads = threads;
+
+        for (long step = 0; step < warmupSteps; step++) {
+            physics.update();
+            snapshot.take(physics, snapshotLoadDistributor, null);
+        }
+
+        long[] phaseNanos = new long[UpdatePhase.values().length];
+        long snapshotNanos = 0;
+        for (long step = 0; step < steps; step++) {
+            physics.update();
+            for (UpdatePhase phase : UpdatePhase.values()) {
+                phaseNanos[phase.ordinal()] += physics.getPhaseNanos(phase);
+            }
+            long snapshotStart = System.nanoTime();
+            snapshot.take(physics, snapshotLoadDistributor, null);
+            snapshotNanos += System.nanoTime() - snapshotStart;
+        }
+        physics.kill();
+        snapshotLoadDistributor.kill();
+
+        double sortMillis = phaseNanos[UpdatePhase.SORT.ordinal()] / 1e6 / steps;
+        double velocityMillis = phaseNanos[UpdatePhase.VELOCITY.ordinal()] / 1e6 / steps;
+        double positionMillis = phaseNanos[UpdatePhase.POSITION.ordinal()] / 1e6 / steps;
+        double snapshotMillis = snapshotNanos / 1e6 / steps;
+        double stepMillis = sortMillis + velocityMillis + positionMillis + snapshotMillis;
+
+        // strong scaling: speedup = t_base / t, ideally threads / base threads
+        // weak scaling: the work grows with the threads, so the speedup also grows with the work
+        double speedup = 1;
+        double efficiency = 1;
+        if (base != null) {
+            double workRatio = mode == Mode.WEAK ? (double) n / base.particles() : 1;
+            speedup = base.stepMillis() / stepMillis * workRatio;
+            efficiency = speedup * base.threads() / threads;
+        }
+
+        return new Result(mode.name().toLowerCase(Locale.ROOT), threads, n, r, stepMillis, speedup, efficiency,
+                sortMillis, velocityMillis, positionMillis, snapshotMillis);
+    }
+}
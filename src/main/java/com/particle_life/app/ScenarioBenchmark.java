@@ -0,0 +1,372 @@
+package com.particle_life.app;
+
+import com.particle_life.app.io.StateIO;
+import com.particle_life.backend.*;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Runs a fixed set of scenarios without graphics (like {@link HeadlessMain})
+ * and records how fast they are, so that slowdowns can be caught before they are released.
+ * <p>
+ * The scenarios are regular save files. They are generated from a fixed seed
+ * into the scenario directory if they don't exist there yet,
+ * so they don't need to be stored in the repository.
+ * <p>
+ * For each scenario, the steps per second, the median and 99th percentile of the step time
+ * and the allocation rate (of all threads) are written to the results file.
+ * If a baseline (a results file from an earlier run) is given,
+ * the results are compared to it and the program exits with code 1 if any value
+ * is worse than the baseline by more than the tolerance.
+ * <p>
+ * Example:
+ * <pre>
+ * ./gradlew runScenarios --args="--results baseline.tsv"
+ * (change something)
+ * ./gradlew runScenarios --args="--baseline baseline.tsv"
+ * </pre>
+ */
+public class ScenarioBenchmark {
+
+    private static final String USAGE = """
+            Usage: ScenarioBenchmark [options]
+
+              --scenarios <dir>        where the scenario saves are stored (default: build/scenarios)
+              --only <a,b,...>         only run these scenarios (default: all of %s)
+              --steps <n>              measured steps per scenario (default: 500)
+              --warmup <n>             steps per scenario before measuring (default: 100)
+              --threads <n>            number of threads (default: number of processors)
+              --engine <name>          force engine (default: SCALAR)
+              --results <file>         where to write the results (default: build/scenario-results.tsv)
+              --baseline <file>        compare with this results file
+              --tolerance <x>          allowed relative regression, e.g. 0.1 for 10%% (default: 0.1)
+            """;
+
+    /**
+     * Allocation rates below this (in MB/s) are considered noise.
+     */
+    private static final double ALLOCATION_RATE_NOISE = 1.0;
+
+    enum Scenario {
+        /**
+         * A single dense cluster of mutually attracting particles.
+         */
+        DENSE_BLOB(10000, 7, 0.02, 0.4, 1.0, 0.1),
+        /**
+         * Mutually repelling particles that stay spread out over the whole space.
+         */
+        UNIFORM_GAS(20000, 7, 0.02, -1.0, -0.2, 0),
+        MANY_TYPES(20000, 40, 0.02, -1.0, 1.0, 0),
+        LARGE_RMAX(5000, 7, 0.1, -1.0, 1.0, 0),
+        TINY_RMAX(50000, 7, 0.005, -1.0, 1.0, 0);
+
+        final int particleCount;
+        final int typeCount;
+        final double rmax;
+        final double minMatrixValue;
+        final double maxMatrixValue;
+        /**
+         * Standard deviation of the positions around the center, or 0 for a uniform distribution.
+         */
+        final double spread;
+
+        Scenario(int particleCount, int typeCount, double rmax, double minMatrixValue, double maxMatrixValue, double spread) {
+            this.particleCount = particleCount;
+            this.typeCount = typeCount;
+            this.rmax = rmax;
+            this.minMatrixValue = minMatrixValue;
+            this.maxMatrixValue = maxMatrixValue;
+            this.spread = spread;
+        }
+
+        String fileName() {
+            return name().toLowerCase(Locale.ROOT) + ".zip";
+        }
+
+        void generate(File file) throws IOException {
+            Random random = new Random(ordinal());
+            PositionSetter positionSetter = spread > 0
+                    ? (position, type, nTypes) -> position.set(
+                    0.5 + random.nextGaussian() * spread,
+                    0.5 + random.nextGaussian() * spread,
+                    0)
+                    : (position, type, nTypes) -> position.set(random.nextDouble(), random.nextDouble(), 0);
+            MatrixGenerator matrixGenerator = size -> {
+                DefaultMatrix matrix = new DefaultMatrix(size);
+                for (int i = 0; i < size; i++) {
+                    for (int j = 0; j < size; j++) {
+                        matrix.set(i, j, minMatrixValue + random.nextDouble() * (maxMatrixValue - minMatrixValue));
+                    }
+                }
+                return matrix;
+            };
+            TypeSetter typeSetter = (position, velocity, type, nTypes) -> random.nextInt(nTypes);
+
+            ExtendedPhysics physics = new ExtendedPhysics(new DefaultAccelerator(),
+                    positionSetter, matrixGenerator, typeSetter);
+            physics.settings.rmax = rmax;
+            physics.setMatrixSize(typeCount);
+            physics.generateMatrix();
+            physics.particles = new ParticleStore();
+            physics.setParticleCount(particleCount);
+
+            try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+                StateIO.saveState(physics, zip);
+            }
+            physics.kill();
+        }
+    }
+
+    /**
+     * One line of a results file.
+     */
+    record Result(String scenario, long steps, double stepsPerSecond,
+                  double p50Millis, double p99Millis, double allocationRate) {
+
+        static final String HEADER = "scenario\tsteps\tsteps_per_second\tp50_ms\tp99_ms\talloc_mb_per_s";
+
+        String toLine() {
+            return String.format(Locale.ROOT, "%s\t%d\t%.3f\t%.4f\t%.4f\t%.3f",
+                    scenario, steps, stepsPerSecond, p50Millis, p99Millis, allocationRate);
+        }
+
+        static Result parse(String line) {
+            String[] parts = line.split("\t");
+            return new Result(parts[0],
+                    Long.parseLong(parts[1]),
+                    Double.parseDouble(parts[2]),
+                    Double.parseDouble(parts[3]),
+                    Double.parseDouble(parts[4]),
+                    Double.parseDouble(parts[5]));
+        }
+    }
+
+    public static void main(String[] args) {
+        ScenarioBenchmark benchmark = new ScenarioBenchmark();
+        try {
+            benchmark.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(usage());
+            System.exit(1);
+        }
+        if (benchmark.help) {
+            System.out.print(usage());
+            return;
+        }
+
+        boolean passed;
+        try {
+            passed = benchmark.run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        if (!passed) System.exit(1);
+    }
+
+    private static String usage() {
+        return USAGE.formatted(String.join(", ", Arrays.stream(Scenario.values()).map(Enum::name).toList()));
+    }
+
+    // options:
+    private boolean help = false;
+    private File scenarioDir = new File("build/scenarios");
+    private List<Scenario> scenarios = List.of(Scenario.values());
+    private long steps = 500;
+    private long warmupSteps = 100;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private ForceEngine forceEngine = ForceEngine.SCALAR;
+    private File resultsFile = new File("build/scenario-results.tsv");
+    private File baselineFile = null;
+    private double tolerance = 0.1;
+
+    private void parseArgs(String[] args) {
+        for (int k = 0; k < args.length; k++) {
+            String arg = args[k];
+            switch (arg) {
+                case "--help", "-h" -> help = true;
+                case "--scenarios" -> scenarioDir = new File(HeadlessMain.value(args, ++k, arg));
+                case "--only" -> {
+                    List<Scenario> selected = new ArrayList<>();
+                    for (String name : HeadlessMain.value(args, ++k, arg).split(",")) {
+                        try {
+                            selected.add(Scenario.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException("Unknown scenario: " + name);
+                        }
+                    }
+                    scenarios = selected;
+                }
+                case "--steps" -> steps = HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--warmup" -> warmupSteps = HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--threads" -> threads = (int) HeadlessMain.parseLong(HeadlessMain.value(args, ++k, arg), arg);
+                case "--engine" -> {
+                    String name = HeadlessMain.value(args, ++k, arg);
+                    try {
+                        forceEngine = ForceEngine.valueOf(name.toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown force engine: " + name);
+                    }
+                }
+                case "--results" -> resultsFile = new File(HeadlessMain.value(args, ++k, arg));
+                case "--baseline" -> baselineFile = new File(HeadlessMain.value(args, ++k, arg));
+                case "--tolerance" -> tolerance = HeadlessMain.parseDouble(HeadlessMain.value(args, ++k, arg), arg);
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (steps < 1) throw new IllegalArgumentException("--steps must be at least 1.");
+        if (warmupSteps < 0) throw new IllegalArgumentException("--warmup must not be negative.");
+        if (threads < 1) throw new IllegalArgumentException("--threads must be at least 1.");
+        if (tolerance < 0) throw new IllegalArgumentException("--tolerance must not be negative.");
+    }
+
+    /**
+     * @return whether there was no regression
+     */
+    private boolean run() throws IOException {
+        // read the baseline first, in case it is the same file as the results
+        Map<String, Result> baseline = baselineFile != null ? readResults(baselineFile) : Map.of();
+
+        Files.createDirectories(scenarioDir.toPath());
+        List<Result> results = new ArrayList<>();
+        for (Scenario scenario : scenarios) {
+            File file = new File(scenarioDir, scenario.fileName());
+            if (!file.exists()) {
+                System.out.println("Generating " + file);
+                scenario.generate(file);
+            }
+            results.add(measure(scenario, file));
+        }
+
+        System.out.println(Result.HEADER);
+        for (Result result : results) {
+            System.out.println(result.toLine());
+        }
+
+        File resultsDir = resultsFile.getAbsoluteFile().getParentFile();
+        if (resultsDir != null) Files.createDirectories(resultsDir.toPath());
+        try (PrintWriter writer = new PrintWriter(new FileWriter(resultsFile))) {
+            writer.println(Result.HEADER);
+            for (Result result : results) {
+                writer.println(result.toLine());
+            }
+        }
+        System.out.println("Results written to " + resultsFile);
+
+        if (baselineFile == null) return true;
+        return compare(results, baseline);
+    }
+
+    private Result measure(Scenario scenario, File file) throws IOException {
+        ExtendedPhysics physics = new ExtendedPhysics(new DefaultAccelerator(),
+                new DefaultPositionSetter(), new DefaultMatrixGenerator(), new DefaultTypeSetter());
+        try (ZipInputStream zip = new ZipInputStream(new FileInputStream(file))) {
+            StateIO.loadState(physics, zip);
+        }
+        physics.forceEngine = forceEngine;
+        physics.preferredNumberOfThreads = threads;
+        physics.settings.dt = 0.02;
+
+        for (long step = 0; step < warmupSteps; step++) {
+            physics.update();
+        }
+
+        long[] stepTimes = new long[(int) steps];
+        long allocatedBefore = allocatedBytes();
+        long startTime = System.nanoTime();
+        for (int step = 0; step < steps; step++) {
+            long stepStart = System.nanoTime();
+            physics.update();
+            stepTimes[step] = System.nanoTime() - stepStart;
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        long allocated = allocatedBytes() - allocatedBefore;
+        physics.kill();
+
+        Arrays.sort(stepTimes);
+        return new Result(scenario.name(), steps,
+                steps / seconds,
+                percentile(stepTimes, 0.5) / 1e6,
+                percentile(stepTimes, 0.99) / 1e6,
+                allocated / 1e6 / seconds);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * @return bytes allocated by all live threads so far, or 0 if the JVM can't measure this
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean sunThreads)
+                || !sunThreads.isThreadAllocatedMemorySupported()) {
+            return 0;
+        }
+        long sum = 0;
+        for (long bytes : sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) sum += bytes;  // -1 for threads that died in the meantime
+        }
+        return sum;
+    }
+
+    private static Map<String, Result> readResults(File file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            reader.lines()
+                    .skip(1)  // skip header
+                    .filter(line -> !line.isBlank())
+                    .map(Result::parse)
+                    .forEach(result -> results.put(result.scenario(), result));
+        }
+        return results;
+    }
+
+    private boolean compare(List<Result> results, Map<String, Result> baseline) {
+        boolean passed = true;
+        for (Result result : results) {
+            Result base = baseline.get(result.scenario());
+            if (base == null) {
+                System.out.println(result.scenario() + ": not in baseline");
+                continue;
+            }
+            List<String> regressions = new ArrayList<>();
+            if (result.stepsPerSecond() < base.stepsPerSecond() * (1 - tolerance)) {
+                regressions.add(String.format(Locale.ROOT, "steps/s %.1f -> %.1f",
+                        base.stepsPerSecond(), result.stepsPerSecond()));
+            }
+            if (result.p50Millis() > base.p50Millis() * (1 + tolerance)) {
+                regressions.add(String.format(Locale.ROOT, "p50 %.3f ms -> %.3f ms",
+                        base.p50Millis(), result.p50Millis()));
+            }
+            if (result.p99Millis() > base.p99Millis() * (1 + tolerance)) {
+                regressions.add(String.format(Locale.ROOT, "p99 %.3f ms -> %.3f ms",
+                        base.p99Millis(), result.p99Millis()));
+            }
+            if (result.allocationRate() > base.allocationRate() * (1 + tolerance) + ALLOCATION_RATE_NOISE) {
+                regressions.add(String.format(Locale.ROOT, "allocation %.1f MB/s -> %.1f MB/s",
+                        base.allocationRate(), result.allocationRate()));
+            }
+
+            if (regressions.isEmpty()) {
+                System.out.println(result.scenario() + ": ok");
+            } else {
+                System.out.println(result.scenario() + ": REGRESSION " + String.join(", ", regressions));
+                passed = false;
+            }
+        }
+        return passed;
+    }
+}
@@ -0,0 +1,11 @@
+package com.particle_life.app;
+
+import com.particle_life.backend.SimulationEvent;
+import jdk.jfr.*;
+
+@Name("com.particle_life.Snapshot")
+@Label("Snapshot")
+@Category({"Particle Life", "Graphics"})
+@Description("Copying the particles for the graphics, see PhysicsSnapshot.take()")
+class SnapshotEvent extends SimulationEvent {
+}
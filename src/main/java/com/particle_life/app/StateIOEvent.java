@@ -0,0 +1,17 @@
+package com.particle_life.app;
+
+import com.particle_life.backend.SimulationEvent;
+import jdk.jfr.*;
+
+@Name("com.particle_life.StateIO")
+@Label("Save / Load")
+@Category({"Particle Life", "IO"})
+@Description("Saving or loading the state of the simulation")
+class StateIOEvent extends SimulationEvent {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("File")
+    String file;
+}
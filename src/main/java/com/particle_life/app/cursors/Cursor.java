@@ -1,11 +1,11 @@
 package com.particle_life.app.cursors;
 
 import com.particle_life.backend.Particle;
+import com.particle_life.backend.ParticleStore;
 import org.joml.Vector3d;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 public class Cursor {
 
@@ -14,38 +14,59 @@ public class Cursor {
     public CursorShape shape;
 
     public boolean isInside(Particle particle, boolean wrap) {
+        return isInside(particle.position.x, particle.position.y, wrap);
+    }
+
+    public boolean isInside(double x, double y, boolean wrap) {
         if (size == 0.0) return false;
 
-        Vector3d delta = new Vector3d(particle.position).sub(position);
+        double dx = x - position.x;
+        double dy = y - position.y;
+        double dz = -position.z;
 
         if (wrap) {
             // wrapping the connection gives us the shortest possible distance
             // assume periodic boundaries [0, 1)
             // -> wrap connection on [-0.5, 0.5)
-            for (int i = 0; i < 3; i++) {
-                double val = delta.get(i);
-                val -= Math.floor(val + 0.5);
-                delta.setComponent(i, val);
-            }
+            dx -= Math.floor(dx + 0.5);
+            dy -= Math.floor(dy + 0.5);
+            dz -= Math.floor(dz + 0.5);
         }
 
-        Vector3d deltaNormalized = delta.div(size);  // relative to cursor size
+        Vector3d deltaNormalized = new Vector3d(dx, dy, dz).div(size);  // relative to cursor size
 
         return shape.isInside(deltaNormalized);
     }
 
-    public List<Particle> getSelection(Particle[] particles, boolean wrap) {
-        List<Particle> selectedParticles = new ArrayList<>();
-        for (Particle particle : particles) {
-            if (isInside(particle, wrap)) selectedParticles.add(particle);
+    /**
+     * @return the indices of all particles that are inside the cursor
+     */
+    public int[] getSelection(ParticleStore particles, boolean wrap) {
+        int n = particles.size();
+        int[] selection = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (isInside(particles.x[i], particles.y[i], wrap)) selection[count++] = i;
+        }
+        return Arrays.copyOf(selection, count);
+    }
+
+    public int countSelection(ParticleStore particles, boolean wrap) {
+        int n = particles.size();
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (isInside(particles.x[i], particles.y[i], wrap)) count++;
         }
-        return selectedParticles;
+        return count;
     }
 
-    public int countSelection(Particle[] particles, boolean wrap) {
+    /**
+     * @param positions the positions of <code>n</code> particles as <code>x, y, z</code> triples
+     */
+    public int countSelection(float[] positions, int n, boolean wrap) {
         int count = 0;
-        for (Particle particle : particles) {
-            if (isInside(particle, wrap)) count++;
+        for (int i = 0; i < n; i++) {
+            if (isInside(positions[3 * i], positions[3 * i + 1], wrap)) count++;
         }
         return count;
     }
@@ -1,43 +1,39 @@
 package com.particle_life.app.io;
 
-import com.particle_life.backend.Particle;
+import com.particle_life.backend.ParticleStore;
 
 import java.io.*;
 
 public class ParticlesIO {
-    public static Particle[] loadParticles(InputStream in) {
-        return new BufferedReader(new InputStreamReader(in))
+    public static ParticleStore loadParticles(InputStream in) {
+        ParticleStore particles = new ParticleStore();
+        new BufferedReader(new InputStreamReader(in))
                 .lines()
                 .skip(1)  // skip header
-                .map(line -> {
+                .forEachOrdered(line -> {
                     String[] parts = line.split("\t");
-                    Particle particle = new Particle();
-                    particle.position.set(
-                            Double.parseDouble(parts[0]),
-                            Double.parseDouble(parts[1]),
-                            0
-                    );
-                    particle.velocity.set(
-                            Double.parseDouble(parts[2]),
-                            Double.parseDouble(parts[3]),
-                            0
-                    );
-                    particle.type = Integer.parseInt(parts[4]);
-                    return particle;
-                })
-                .toArray(Particle[]::new);
+                    int i = particles.size();
+                    particles.resize(i + 1);
+                    particles.x[i] = Double.parseDouble(parts[0]);
+                    particles.y[i] = Double.parseDouble(parts[1]);
+                    particles.vx[i] = Double.parseDouble(parts[2]);
+                    particles.vy[i] = Double.parseDouble(parts[3]);
+                    particles.type[i] = Integer.parseInt(parts[4]);
+                });
+        return particles;
     }
 
-    public static void saveParticles(Particle[] particles, OutputStream out) throws IOException {
+    public static void saveParticles(ParticleStore particles, OutputStream out) throws IOException {
         try (ByteArrayOutputStream byteStream = new ByteArrayOutputStream()) {
             try (PrintWriter writer = new PrintWriter(byteStream)) {
                 writer.println("x\ty\tvx\tvy\tcolor");
-                for (Particle particle : particles) {
-                    writer.println(particle.position.x + "\t"
-                            + particle.position.y + "\t"
-                            + particle.velocity.x + "\t"
-                            + particle.velocity.y + "\t"
-                            + particle.type);
+                int n = particles.size();
+                for (int i = 0; i < n; i++) {
+                    writer.println(particles.x[i] + "\t"
+                            + particles.y[i] + "\t"
+                            + particles.vx[i] + "\t"
+                            + particles.vy[i] + "\t"
+                            + particles.type[i]);
                 }
                 writer.flush();
             }
@@ -0,0 +1,80 @@
+package com.particle_life.app.io;
+
+import com.particle_life.app.PhysicsSettingsToml;
+import com.particle_life.backend.Physics;
+
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads and writes the state of a simulation as entries of a ZIP file:
+ * <ul>
+ *     <li>particles.tsv</li>
+ *     <li>physics.toml</li>
+ *     <li>matrix.tsv</li>
+ * </ul>
+ */
+public class StateIO {
+
+    /**
+     * Writes the entries for the particles, the physics settings and the matrix.
+     * Further entries (e.g. an image) can be added to <code>zip</code> afterwards.
+     */
+    public static void saveState(Physics physics, ZipOutputStream zip) throws IOException {
+
+        // PARTICLES
+        zip.putNextEntry(new ZipEntry("particles.tsv"));
+        ParticlesIO.saveParticles(physics.particles, zip);
+        zip.closeEntry();
+
+        // PHYSICS SETTINGS
+        zip.putNextEntry(new ZipEntry("physics.toml"));
+        PhysicsSettingsToml.fromPhysicsSettings(physics.settings).save(zip);
+        zip.closeEntry();
+
+        // MATRIX
+        zip.putNextEntry(new ZipEntry("matrix.tsv"));
+        MatrixIO.saveMatrix(physics.settings.matrix, zip);
+        zip.closeEntry();
+    }
+
+    /**
+     * Loads all known entries from <code>zip</code> into <code>physics</code>.
+     * If an entry is missing, the existing state will be kept for that part.
+     * Currently, this might lead to an error, e.g. if the matrix size
+     * doesn't match the particle types.
+     */
+    public static void loadState(Physics physics, ZipInputStream zip) throws IOException {
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            switch (entry.getName()) {
+                case "particles.tsv": {
+                    physics.particles = ParticlesIO.loadParticles(zip);
+                    break;
+                }
+                case "physics.toml": {
+                    PhysicsSettingsToml toml = new PhysicsSettingsToml();
+                    toml.load(zip);
+                    toml.toPhysicsSettings(physics.settings);  // copy values
+                    break;
+                }
+                case "matrix.tsv": {
+                    physics.settings.matrix = MatrixIO.loadMatrix(zip);
+                    physics.ensureTypes();  // in case the matrix size changed
+                    break;
+                }
+                case "img.png": {
+                    // ignore
+                    break;
+                }
+                default: {
+                    System.err.println("Unknown file in ZIP: " + entry.getName());
+                    break;
+                }
+            }
+            zip.closeEntry();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.particle_life.app.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Passes data from one producer thread to one consumer thread without locking and without waiting.
+ * <p>
+ * There are three buffers: the producer writes into one of them, the consumer reads from another one,
+ * and the third one holds the most recently published data.
+ * Publishing swaps the producer's buffer with the third one, and so does acquiring for the consumer.
+ * This way, a buffer is never written while it is being read,
+ * and both threads can run at their own rate.
+ * If the producer publishes faster than the consumer acquires, the older data is simply dropped.
+ * <p>
+ * Each thread must only access its own buffer, and only until it swaps it,
+ * i.e. the producer until {@link #publish()} and the consumer until {@link #acquire()}.
+ */
+public class TripleBuffer<T> {
+
+    private static final int INDEX_MASK = 0b11;
+    /**
+     * Set in {@link #shared} if the buffer was published, but not acquired yet.
+     */
+    private static final int NEW_FLAG = 0b100;
+
+    private final Object[] buffers = new Object[3];
+    /**
+     * Index of the buffer that is neither written nor read right now, possibly combined with {@link #NEW_FLAG}.
+     */
+    private final AtomicInteger shared = new AtomicInteger(2);
+    private int writeIndex = 0;  // only accessed by the producer
+    private int readIndex = 1;  // only accessed by the consumer
+
+    public TripleBuffer(Supplier<T> factory) {
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = factory.get();
+        }
+    }
+
+    /**
+     * Only call this from the producer thread.
+     *
+     * @return the buffer that the producer can write into
+     */
+    @SuppressWarnings("unchecked")
+    public T getWriteBuffer() {
+        return (T) buffers[writeIndex];
+    }
+
+    /**
+     * Makes the data in the write buffer available to the consumer and gives the producer another buffer.
+     * Only call this from the producer thread.
+     */
+    public void publish() {
+        writeIndex = shared.getAndSet(writeIndex | NEW_FLAG) & INDEX_MASK;
+    }
+
+    /**
+     * Replaces the read buffer with the most recently published data, if there is any new data.
+     * Only call this from the consumer thread.
+     *
+     * @return whether the read buffer changed
+     */
+    public boolean acquire() {
+        if ((shared.get() & NEW_FLAG) == 0) return false;
+        readIndex = shared.getAndSet(readIndex) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * Only call this from the consumer thread.
+     *
+     * @return the buffer with the data that was most recently acquired
+     */
+    @SuppressWarnings("unchecked")
+    public T getReadBuffer() {
+        return (T) buffers[readIndex];
+    }
+}
@@ -0,0 +1,269 @@
+package com.particle_life.backend;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Searches for the fastest {@link Physics#preferredNumberOfThreads} and {@link Physics#chunksPerThread}
+ * while the simulation is running normally (see {@link Physics#autoTune}).
+ * <p>
+ * Starting from the current configuration, the neighboring configurations are tried one after another,
+ * each for a couple of steps, and the search moves on to a neighbor if it is clearly faster.
+ * The number of threads is changed in large steps first, which are halved whenever no neighbor is faster.
+ * When the steps can't get any smaller, the fastest configuration is kept.
+ * The chunks are only tuned for {@link LoadBalancing#COST_BALANCED}, as the other load balancing doesn't use them.
+ * <p>
+ * The search starts over when the workload changes significantly,
+ * i.e. the number of particles, <code>rmax</code>, the force engine or the load balancing,
+ * or if someone else changes the number of threads.
+ * As the particles can cluster without any of these changing, the step time is still watched after converging:
+ * the search is repeated, starting from the fastest configuration,
+ * if the median of the recent steps drifts away from the measured one,
+ * and every {@link #RETUNE_INTERVAL_STEPS} steps in any case.
+ * <p>
+ * Only {@link Physics} changes the state of the tuner, from the thread that calls {@link Physics#update()}.
+ * The getters are safe to call from any thread, but may be slightly inconsistent with each other.
+ */
+public class AutoTuner {
+
+    public enum State {
+        /**
+         * {@link Physics#autoTune} is disabled.
+         */
+        IDLE,
+        /**
+         * Trying different configurations.
+         */
+        SEARCHING,
+        /**
+         * Found the fastest configuration and keeps it while the step time stays about the same.
+         */
+        CONVERGED,
+    }
+
+    /**
+     * Steps after switching to another configuration that are not measured,
+     * as new threads might need to be started first.
+     */
+    private static final int WARMUP_STEPS = 3;
+    /**
+     * Steps that are measured for each configuration.
+     * Their median is used, so that single slow steps (e.g. garbage collection) don't matter.
+     */
+    private static final int MEASURED_STEPS = 15;
+    /**
+     * A configuration must be faster by at least this fraction to replace the best one,
+     * so that the search doesn't follow measurement noise.
+     */
+    private static final double MIN_IMPROVEMENT = 0.03;
+    /**
+     * Relative change of the number of particles, <code>rmax</code>
+     * or the median step time after converging that starts a new search.
+     */
+    private static final double RETUNE_THRESHOLD = 0.2;
+    /**
+     * Steps after converging until the search is repeated,
+     * to catch slow changes that don't exceed {@link #RETUNE_THRESHOLD}.
+     */
+    private static final int RETUNE_INTERVAL_STEPS = 5000;
+    private static final int MAX_CHUNKS_PER_THREAD = 64;
+
+    private volatile State state = State.IDLE;
+    private volatile int bestThreads = 0;
+    private volatile int bestChunksPerThread = 0;
+    private volatile double bestStepMillis = Double.NaN;
+
+    private int maxThreads;
+    private int threadStep;
+    /**
+     * Configurations <code>{threads, chunksPerThread}</code> that are still to be tried around the best one.
+     */
+    private final ArrayDeque<int[]> candidates = new ArrayDeque<>();
+    /**
+     * Configurations that were already measured with the current {@link #threadStep}.
+     */
+    private final Set<Long> measured = new HashSet<>();
+    private int[] current = null;
+    private int stepsInConfiguration = 0;
+    /**
+     * The step times of the current configuration.
+     * After converging, this is a ring buffer with the most recent steps.
+     */
+    private final long[] samples = new long[MEASURED_STEPS];
+
+    // the workload when the search started:
+    private int particleCount;
+    private double rmax;
+    private ForceEngine forceEngine;
+    private LoadBalancing loadBalancing;
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of threads of the fastest configuration so far, or 0 if there is none yet
+     */
+    public int getBestThreads() {
+        return bestThreads;
+    }
+
+    /**
+     * @return the chunks per thread of the fastest configuration so far, or 0 if there is none yet
+     */
+    public int getBestChunksPerThread() {
+        return bestChunksPerThread;
+    }
+
+    /**
+     * @return the median duration of a step with the fastest configuration so far in milliseconds,
+     * or {@link Double#NaN} if nothing was measured yet
+     */
+    public double getBestStepMillis() {
+        return bestStepMillis;
+    }
+
+    /**
+     * Called by {@link Physics} after each step while {@link Physics#autoTune} is enabled.
+     *
+     * @param stepNanos how long the step took
+     */
+    void afterStep(Physics physics, long stepNanos) {
+        if (state == State.IDLE || workloadChanged(physics)) {
+            start(physics);
+            return;
+        }
+
+        if (stepsInConfiguration >= WARMUP_STEPS) {
+            samples[(stepsInConfiguration - WARMUP_STEPS) % MEASURED_STEPS] = stepNanos;
+        }
+        stepsInConfiguration++;
+        if (stepsInConfiguration < WARMUP_STEPS + MEASURED_STEPS) return;
+
+        double millis = medianMillis();
+
+        if (state == State.CONVERGED) {
+            if (changedSignificantly(millis, bestStepMillis) || stepsInConfiguration >= RETUNE_INTERVAL_STEPS) {
+                search(physics, bestThreads, bestChunksPerThread);
+            }
+            return;
+        }
+
+        measured.add(key(current));
+
+        if (Double.isNaN(bestStepMillis) || millis < bestStepMillis * (1 - MIN_IMPROVEMENT)) {
+            bestThreads = current[0];
+            bestChunksPerThread = current[1];
+            bestStepMillis = millis;
+            candidates.clear();
+            addCandidates();
+        }
+
+        while (candidates.isEmpty() && threadStep > 1) {
+            threadStep /= 2;
+            measured.clear();
+            measured.add(key(new int[]{bestThreads, bestChunksPerThread}));
+            addCandidates();
+        }
+
+        if (candidates.isEmpty()) {
+            current = new int[]{bestThreads, bestChunksPerThread};
+            state = State.CONVERGED;
+        } else {
+            current = candidates.poll();
+        }
+        apply(physics, current);
+        stepsInConfiguration = 0;
+    }
+
+    /**
+     * Called by {@link Physics} after each step while {@link Physics#autoTune} is disabled.
+     * If a search was interrupted, the fastest configuration found so far is kept.
+     */
+    void stop(Physics physics) {
+        if (state == State.IDLE) return;
+        if (state == State.SEARCHING && bestThreads > 0) {
+            apply(physics, new int[]{bestThreads, bestChunksPerThread});
+        }
+        state = State.IDLE;
+    }
+
+    private void start(Physics physics) {
+        particleCount = physics.particles.size();
+        rmax = physics.settings.rmax;
+        forceEngine = physics.forceEngine;
+        loadBalancing = physics.loadBalancing;
+
+        search(physics, physics.preferredNumberOfThreads, physics.chunksPerThread);
+    }
+
+    /**
+     * Starts searching around the given configuration, forgetting all previous measurements.
+     */
+    private void search(Physics physics, int threads, int chunksPerThread) {
+        threads = Math.max(1, threads);
+        chunksPerThread = Math.max(1, Math.min(MAX_CHUNKS_PER_THREAD, chunksPerThread));
+        maxThreads = Math.max(threads, Runtime.getRuntime().availableProcessors());
+        threadStep = Math.max(1, threads / 2);
+        bestThreads = 0;
+        bestChunksPerThread = 0;
+        bestStepMillis = Double.NaN;
+        candidates.clear();
+        measured.clear();
+
+        current = new int[]{threads, chunksPerThread};
+        apply(physics, current);
+        stepsInConfiguration = 0;
+        state = State.SEARCHING;
+    }
+
+    private boolean workloadChanged(Physics physics) {
+        int expectedThreads = state == State.SEARCHING ? current[0] : bestThreads;
+        return physics.preferredNumberOfThreads != expectedThreads
+                || physics.forceEngine != forceEngine
+                || physics.loadBalancing != loadBalancing
+                || changedSignificantly(physics.particles.size(), particleCount)
+                || changedSignificantly(physics.settings.rmax, rmax);
+    }
+
+    private double medianMillis() {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1e6;
+    }
+
+    private static boolean changedSignificantly(double value, double reference) {
+        return Math.abs(value - reference) > RETUNE_THRESHOLD * Math.max(Math.abs(reference), 1e-12);
+    }
+
+    /**
+     * Adds the neighbors of the best configuration that weren't measured yet.
+     */
+    private void addCandidates() {
+        addCandidate(bestThreads + threadStep, bestChunksPerThread);
+        addCandidate(bestThreads - threadStep, bestChunksPerThread);
+        if (loadBalancing == LoadBalancing.COST_BALANCED) {
+            addCandidate(bestThreads, bestChunksPerThread * 2);
+            addCandidate(bestThreads, bestChunksPerThread / 2);
+        }
+    }
+
+    private void addCandidate(int threads, int chunksPerThread) {
+        if (threads < 1 || threads > maxThreads) return;
+        if (chunksPerThread < 1 || chunksPerThread > MAX_CHUNKS_PER_THREAD) return;
+        int[] candidate = {threads, chunksPerThread};
+        if (measured.contains(key(candidate))) return;
+        candidates.add(candidate);
+    }
+
+    private static long key(int[] configuration) {
+        return ((long) configuration[0] << 32) | configuration[1];
+    }
+
+    private static void apply(Physics physics, int[] configuration) {
+        physics.preferredNumberOfThreads = configuration[0];
+        physics.chunksPerThread = configuration[1];
+    }
+}
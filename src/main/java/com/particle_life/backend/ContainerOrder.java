@@ -0,0 +1,113 @@
+package com.particle_life.backend;
+
+import java.util.Arrays;
+
+/**
+ * Selects the order in which {@link Physics} lays out the containers in memory.
+ * As the particles are sorted by container, this is also the order of the particles in {@link Physics#particles}.
+ * <p>
+ * With a space-filling curve, containers that are close in space are mostly close in memory as well.
+ * So the neighbor containers of a particle are more likely to be in the cache,
+ * and the consecutive chunks of particles that are handed to each thread cover compact areas
+ * instead of long, thin strips.
+ *
+ * @see Physics#containerOrder
+ */
+public enum ContainerOrder {
+
+    /**
+     * Container <code>(cx, cy)</code> comes at index <code>cx + cy * nx</code>.
+     */
+    ROW_MAJOR,
+
+    /**
+     * Z-order curve, i.e. the bits of the x and y coordinates are interleaved.
+     * This is cheap to compute but has some large jumps.
+     */
+    MORTON,
+
+    /**
+     * Hilbert curve, which mostly steps to an adjacent container.
+     * On a square grid with a power of 2 as size, every step goes to an adjacent container,
+     * but other grids are cut out of the next larger such square,
+     * so the curve jumps wherever it leaves the grid and comes back in elsewhere.
+     */
+    HILBERT;
+
+    /**
+     * Calculates for each container at which position it comes in this order.
+     *
+     * @return array with <code>nx * ny</code> entries, where the entry at <code>cx + cy * nx</code>
+     * is the position of container <code>(cx, cy)</code>
+     */
+    int[] makeRanks(int nx, int ny) {
+        final int n = nx * ny;
+        int[] ranks = new int[n];
+        if (this == ROW_MAJOR) {
+            for (int i = 0; i < n; i++) {
+                ranks[i] = i;
+            }
+            return ranks;
+        }
+
+        // the curves are defined on a square grid with a power of 2 as size
+        int size = Integer.highestOneBit(Math.max(1, Math.max(nx, ny) - 1)) << 1;
+
+        // sort the containers by their position on the curve (upper 32 bits), breaking ties by index
+        long[] keys = new long[n];
+        for (int cy = 0; cy < ny; cy++) {
+            for (int cx = 0; cx < nx; cx++) {
+                int i = cx + cy * nx;
+                keys[i] = curveIndex(cx, cy, size) << 32 | i;
+            }
+        }
+        Arrays.sort(keys);
+        for (int rank = 0; rank < n; rank++) {
+            ranks[(int) keys[rank]] = rank;
+        }
+        return ranks;
+    }
+
+    private long curveIndex(int x, int y, int size) {
+        return switch (this) {
+            case ROW_MAJOR -> x + (long) y * size;
+            case MORTON -> interleaveBits(x) | interleaveBits(y) << 1;
+            case HILBERT -> hilbertIndex(x, y, size);
+        };
+    }
+
+    /**
+     * Spreads the lower 16 bits of <code>v</code> so that there is a 0 between each of them.
+     */
+    private static long interleaveBits(int v) {
+        long x = v & 0xFFFF;
+        x = (x | x << 8) & 0x00FF00FFL;
+        x = (x | x << 4) & 0x0F0F0F0FL;
+        x = (x | x << 2) & 0x33333333L;
+        x = (x | x << 1) & 0x55555555L;
+        return x;
+    }
+
+    /**
+     * @param size side length of the curve's grid, must be a power of 2
+     */
+    private static long hilbertIndex(int x, int y, int size) {
+        long d = 0;
+        for (int s = size / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = size - 1 - x;
+                    y = size - 1 - y;
+                }
+                int h = x;
+                x = y;
+                y = h;
+            }
+        }
+        return d;
+    }
+}
@@ -0,0 +1,22 @@
+package com.particle_life.backend;
+
+/**
+ * Repels particles that are closer than <code>beta * rmax</code>,
+ * and attracts or repels particles further away depending on the matrix entry,
+ * with the strongest effect halfway between <code>beta * rmax</code> and <code>rmax</code>.
+ */
+public class DefaultAccelerator implements ScalarAccelerator {
+
+    /**
+     * Radius of the repulsive core, relative to <code>rmax</code>.
+     */
+    public static final double BETA = 0.3;
+
+    @Override
+    public void accelerate(double a, double dx, double dy, double distance, double[] acceleration) {
+        double force = distance < BETA ? (distance / BETA - 1) : a * (1 - Math.abs(1 + BETA - 2 * distance) / (1 - BETA));
+        double factor = force / distance;
+        acceleration[0] += dx * factor;
+        acceleration[1] += dy * factor;
+    }
+}
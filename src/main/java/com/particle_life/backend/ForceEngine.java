@@ -0,0 +1,88 @@
+package com.particle_life.backend;
+
+/**
+ * Selects how {@link Physics} evaluates the forces between neighboring particles.
+ *
+ * @see Physics#forceEngine
+ */
+public enum ForceEngine {
+
+    /**
+     * Evaluates one pair of particles at a time.
+     */
+    SCALAR,
+
+    /**
+     * Evaluates several neighbors at once using SIMD instructions via the JDK Vector API.
+     * The {@link DefaultAccelerator} is computed directly, giving the same result as {@link #SCALAR}.
+     * Any other force law is looked up in a {@link TabulatedAccelerator table},
+     * which is slightly less accurate.
+     * <p>
+     * This needs the incubator module <code>jdk.incubator.vector</code>,
+     * i.e. the JVM must be started with <code>--add-modules jdk.incubator.vector</code>.
+     * If the module is not available, or if the CPU has no vectors with more than one double,
+     * {@link #SCALAR} is used instead.
+     */
+    VECTORIZED,
+
+    /**
+     * Computes the connection between each pair of particles only once
+     * and applies the force to both particles.
+     * Each container is only paired with itself and the half of its neighbor containers
+     * that comes after it ("half-shell"),
+     * so every pair of neighbor containers is visited once instead of twice.
+     * <p>
+     * As processing a row of containers writes to the velocities of particles in the following rows as well,
+     * the rows are processed in phases such that no two threads write to the same row at the same time.
+     * With periodic boundaries, this needs enough containers so that the neighborhood
+     * doesn't wrap around onto itself (e.g. at least 3x3 containers if rmax is the container size).
+     * Otherwise, {@link #SCALAR} is used instead.
+     */
+    PAIRWISE,
+
+    /**
+     * Keeps a list of the particles within <code>rmax * (1 + skin)</code> for each particle
+     * ("Verlet lists", see {@link Physics#neighborListSkin}) and only checks those.
+     * The particles are only sorted into containers when the lists are rebuilt,
+     * which is only necessary once a particle moved by more than half the skin.
+     * <p>
+     * This is fast if the particles move slowly compared to rmax,
+     * but the lists need a lot of memory in dense clusters.
+     */
+    NEIGHBOR_LIST,
+
+    /**
+     * Same as {@link #SCALAR}, but computes the connections between particles with <code>float</code>s,
+     * reading the positions from a single-precision copy that is made at the beginning of each velocity pass.
+     * The particles themselves are still stored in double precision.
+     * <p>
+     * Making the copy is an extra pass over all positions,
+     * but the force loop then reads half as many bytes for each of the many neighbors of a particle,
+     * so this only pays off if the particles have many neighbors.
+     * For positions in [0, 1), the error of about 1e-7 is far below any practical rmax.
+     * <p>
+     * The forces are still summed up, and the particles moved, in double precision.
+     */
+    SINGLE_PRECISION;
+
+    private static final boolean VECTORIZED_AVAILABLE = ModuleLayer.boot()
+            .findModule("jdk.incubator.vector")
+            .isPresent()
+            && VectorizedKernel.isSupported();  // only loaded if the module is present
+
+    /**
+     * @return whether this engine can be used in the running JVM.
+     * If not, {@link Physics} falls back to {@link #SCALAR}.
+     */
+    public boolean isAvailable() {
+        return this != VECTORIZED || VECTORIZED_AVAILABLE;
+    }
+
+    /**
+     * @return whether {@link Physics#recordPairCensus} works with this engine.
+     * {@link #VECTORIZED} and {@link #PAIRWISE} don't look at the pairs one by one, so they can't count them.
+     */
+    public boolean countsPairs() {
+        return this != VECTORIZED && this != PAIRWISE;
+    }
+}
@@ -0,0 +1,61 @@
+package com.particle_life.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in fixed buckets, e.g. for exporting them as metrics.
+ * <p>
+ * Unlike {@link TimeHistory}, this can be read from any thread while it is being written,
+ * without locking: {@link #record(long)} only increments atomic counters.
+ * The counts and the sum are not read as a whole, so a reader may see a duration in one but not yet in the other.
+ */
+public class Histogram {
+
+    private final long[] upperBoundsNanos;
+    /**
+     * Non-cumulative counts, with one more entry than there are bounds for the durations above all bounds.
+     */
+    private final AtomicLongArray counts;
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /**
+     * @param upperBoundsNanos inclusive upper bound of each bucket in nanoseconds, in ascending order
+     */
+    public Histogram(long... upperBoundsNanos) {
+        this.upperBoundsNanos = upperBoundsNanos.clone();
+        counts = new AtomicLongArray(upperBoundsNanos.length + 1);
+    }
+
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < upperBoundsNanos.length && nanos > upperBoundsNanos[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return the number of buckets, not counting the one for durations above all bounds
+     */
+    public int getBucketCount() {
+        return upperBoundsNanos.length;
+    }
+
+    public long getUpperBoundNanos(int bucket) {
+        return upperBoundsNanos[bucket];
+    }
+
+    /**
+     * @param bucket index of the bucket, or {@link #getBucketCount()} for the durations above all bounds
+     * @return how many durations fell into this bucket (not cumulative)
+     */
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+}
@@ -0,0 +1,24 @@
+package com.particle_life.backend;
+
+/**
+ * Selects how {@link Physics} distributes the force computation over its threads.
+ *
+ * @see Physics#loadBalancing
+ */
+public enum LoadBalancing {
+
+    /**
+     * Each thread gets the same number of particles.
+     * This is cheap, but if the particles form dense clusters,
+     * the threads whose particles are in a cluster take much longer than the others.
+     */
+    EVEN,
+
+    /**
+     * The particles are split into many small chunks along the containers,
+     * such that each chunk needs roughly the same number of distance checks.
+     * The threads take the next chunk as soon as they are done with the previous one,
+     * so no thread has to wait for a single slow one at the end.
+     */
+    COST_BALANCED
+}
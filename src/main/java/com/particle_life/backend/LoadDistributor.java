@@ -1,11 +1,155 @@
 package com.particle_life.backend;
 
-import java.util.LinkedList;
-import java.util.concurrent.*;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Distributes work over a set of persistent worker threads.
+ * <p>
+ * Each call to {@link #distributeLoadEvenly} is a "phase":
+ * the load is split into batches, which are claimed by the workers and by the calling thread itself,
+ * and the call returns once all batches are done.
+ * Between phases, the workers first spin for a short time and then park,
+ * so that consecutive phases (e.g. the steps of {@link Physics#update()})
+ * don't have to wait for threads to be woken up or for tasks to be submitted.
+ * <p>
+ * Only one thread at a time may call {@link #distributeLoadEvenly}.
+ * <p>
+ * For each thread, the time spent on processing ranges ("busy") and the time spent waiting
+ * for the other threads to finish a phase ("idle") is recorded, see {@link #getBusyNanos()}.
+ * The thread that calls {@link #distributeLoadEvenly} has index 0, the workers have the indices 1, 2, ...
+ */
 public class LoadDistributor {
 
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    /**
+     * How often a waiting thread calls {@link Thread#onSpinWait()} before it parks.
+     * Spinning only makes sense if the other threads can run at the same time.
+     */
+    private static final int SPIN_LIMIT = Runtime.getRuntime().availableProcessors() > 1 ? 1 << 12 : 0;
+
+    private Worker[] workers = new Worker[0];
+    private volatile boolean killed = false;
+
+    /**
+     * The phase that is currently being processed (or the last one).
+     * Workers wait until this changes.
+     */
+    private volatile Phase phase = null;
+
+    // accumulated times per thread, only accessed by the calling thread:
+    private long[] busyNanos = new long[0];
+    private long[] idleNanos = new long[0];
+
+    private static final class Phase {
+        final RangeProcessor rangeProcessor;
+        final int loadSize;
+        final int length;
+        /**
+         * If not <code>null</code>, batch <code>b</code> is the range <code>bounds[b] ... bounds[b + 1] - 1</code>.
+         * Otherwise, all batches have the same length.
+         */
+        final int[] bounds;
+        final int batches;
+        /**
+         * Number of workers that may take part, not counting the calling thread.
+         */
+        final int workers;
+        final Thread caller;
+        final AtomicInteger nextBatch = new AtomicInteger(0);
+        final AtomicInteger remainingBatches;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        /**
+         * Time spent on processing ranges by each participating thread.
+         * Each thread only writes its own entry, before it counts down {@link #remainingBatches}.
+         */
+        final long[] busyNanos;
+
+        Phase(RangeProcessor rangeProcessor, int loadSize, int length, int[] bounds, int batches, int workers) {
+            this.rangeProcessor = rangeProcessor;
+            this.loadSize = loadSize;
+            this.length = length;
+            this.bounds = bounds;
+            this.batches = batches;
+            this.workers = workers;
+            this.caller = Thread.currentThread();
+            this.remainingBatches = new AtomicInteger(batches);
+            this.busyNanos = new long[workers + 1];
+        }
+
+        /**
+         * Processes batches until there are none left.
+         *
+         * @param thread index of the current thread, see {@link #currentThreadIndex()}
+         */
+        void work(int thread) {
+            int batch;
+            while ((batch = nextBatch.getAndIncrement()) < batches) {
+                int start = bounds != null ? bounds[batch] : batch * length;
+                int stop = bounds != null ? bounds[batch + 1] : Math.min(start + length, loadSize);
+                long startTime = System.nanoTime();
+                try {
+                    rangeProcessor.process(batch, start, stop);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+                busyNanos[thread] += System.nanoTime() - startTime;
+                if (remainingBatches.decrementAndGet() == 0 && Thread.currentThread() != caller) {
+                    LockSupport.unpark(caller);
+                }
+            }
+        }
+
+        boolean isDone() {
+            return remainingBatches.get() == 0;
+        }
+    }
+
+    private final class Worker extends Thread {
+        final int index;
+        volatile boolean stopped = false;
+        volatile boolean parked = false;
+
+        Worker(int index) {
+            super("LoadDistributor-" + index);
+            this.index = index;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Phase lastPhase = null;
+            while (true) {
+                // wait for the next phase
+                Phase current;
+                int spins = 0;
+                while ((current = phase) == lastPhase) {
+                    if (stopped || killed) return;
+                    if (spins < SPIN_LIMIT) {
+                        spins++;
+                        Thread.onSpinWait();
+                    } else {
+                        parked = true;
+                        if (phase == lastPhase && !stopped && !killed) {
+                            LockSupport.park(this);
+                        }
+                        parked = false;
+                    }
+                }
+                lastPhase = current;
+                if (index < current.workers) {
+                    current.work(index + 1);
+                }
+            }
+        }
+
+        void wakeUp() {
+            if (parked) {
+                LockSupport.unpark(this);
+            }
+        }
+    }
 
     public interface IndexProcessor {
         /**
@@ -16,59 +160,197 @@ public class LoadDistributor {
         boolean process(int i);
     }
 
-    private record BatchProcessor(int start, int stop, IndexProcessor indexProcessor) implements Runnable {
+    public interface RangeProcessor {
+        /**
+         * @param batch index of the range, in 0 ... {@link #batchCount(int, int)} - 1
+         * @param start first index of the range (inclusive)
+         * @param stop  last index of the range (exclusive)
+         */
+        void process(int batch, int start, int stop);
+    }
 
-        @Override
-        public void run() {
+    /**
+     * @return the index of the current thread if it is a worker of a LoadDistributor (1, 2, ...), or else 0,
+     * which is the index of the thread that distributes the load.
+     * This can be used to access per-thread data in a {@link RangeProcessor}.
+     */
+    public static int currentThreadIndex() {
+        return Thread.currentThread() instanceof Worker worker ? worker.index + 1 : 0;
+    }
+
+    /**
+     * @return into how many ranges {@link #distributeLoadEvenly} splits the load
+     */
+    public static int batchCount(int loadSize, int preferredNumberOfThreads) {
+        if (loadSize <= 0) return 0;
+        int length = batchLength(loadSize, preferredNumberOfThreads);
+        return (loadSize + length - 1) / length;
+    }
+
+    private static int batchLength(int loadSize, int preferredNumberOfThreads) {
+        return (int) Math.ceil(loadSize / (double) preferredNumberOfThreads);
+    }
+
+    /**
+     *
+     * @param loadSize                 the number of indices that must be processed
+     * @param preferredNumberOfThreads on how many threads the load should be distributed
+     * @param indexProcessor           callback that will be invoked on each index in 0 ... loadSize - 1
+     */
+    public void distributeLoadEvenly(int loadSize, int preferredNumberOfThreads, IndexProcessor indexProcessor) {
+        distributeLoadEvenly(loadSize, preferredNumberOfThreads, (batch, start, stop) -> {
             for (int i = start; i < stop; i++) {
                 if (!indexProcessor.process(i)) {
                     break;
                 }
             }
-        }
+        });
     }
 
     /**
+     * Splits the indices 0 ... loadSize - 1 into consecutive ranges of equal length
+     * (except for the last one) and processes the ranges in parallel.
+     * The ranges are the same for each call with the same arguments,
+     * so the batch index can be used to access per-batch data.
+     * The calling thread processes ranges as well and blocks until all ranges are done.
      *
      * @param loadSize                 the number of indices that must be processed
      * @param preferredNumberOfThreads on how many threads the load should be distributed
-     * @param indexProcessor           callback that will be invoked on each index in 0 ... loadSize - 1
+     * @param rangeProcessor           callback that will be invoked once for each range
      */
-    public void distributeLoadEvenly(int loadSize, int preferredNumberOfThreads, IndexProcessor indexProcessor) {
+    public void distributeLoadEvenly(int loadSize, int preferredNumberOfThreads, RangeProcessor rangeProcessor) {
 
         if (loadSize <= 0) return;
 
-        LinkedList<Future<?>> futures = new LinkedList<>();  // needed later for waiting for all threads to finish
-        int length = (int) Math.ceil(loadSize / (double) preferredNumberOfThreads);
-
-        int start = 0;
-        int stop = start + length;
-        while (stop <= loadSize) {
-            Future<?> future = threadPool.submit(new BatchProcessor(start, stop, indexProcessor));
-            futures.add(future);
-            // move interval by length
-            start += length;
-            stop += length;
-        }
-        if (start < loadSize) {
-            Future<?> future = threadPool.submit(new BatchProcessor(start, loadSize, indexProcessor));
-            futures.add(future);
+        int length = batchLength(loadSize, preferredNumberOfThreads);
+        int batches = (loadSize + length - 1) / length;
+        run(new Phase(rangeProcessor, loadSize, length, null, batches,
+                Math.min(preferredNumberOfThreads, batches) - 1),  // the calling thread helps as well
+                preferredNumberOfThreads);
+    }
+
+    /**
+     * Processes the given ranges in parallel.
+     * Unlike with {@link #distributeLoadEvenly}, there can be many more ranges than threads.
+     * Each thread takes the next range as soon as it is done with the previous one,
+     * so the ranges don't need to take the same time.
+     *
+     * @param bounds                   range <code>b</code> is <code>bounds[b] ... bounds[b + 1] - 1</code>,
+     *                                 so this must contain (at least) <code>chunks + 1</code> ascending entries
+     * @param chunks                   number of ranges
+     * @param preferredNumberOfThreads on how many threads the load should be distributed
+     * @param rangeProcessor           callback that will be invoked once for each range
+     */
+    public void distributeChunks(int[] bounds, int chunks, int preferredNumberOfThreads, RangeProcessor rangeProcessor) {
+
+        if (chunks <= 0) return;
+
+        run(new Phase(rangeProcessor, bounds[chunks], 0, bounds, chunks,
+                Math.min(preferredNumberOfThreads, chunks) - 1),
+                preferredNumberOfThreads);
+    }
+
+    private void run(Phase current, int preferredNumberOfThreads) {
+
+        if (killed) throw new IllegalStateException("LoadDistributor was killed");
+
+        ensureWorkers(Math.max(0, preferredNumberOfThreads - 1));
+
+        final int neededWorkers = current.workers;
+        long startTime = System.nanoTime();
+        phase = current;
+        for (int i = 0; i < neededWorkers; i++) {
+            workers[i].wakeUp();
         }
 
+        current.work(0);
+
         // wait for all threads to finish
-        for (Future<?> future : futures) {
-            try {
-                future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
+        int spins = 0;
+        while (!current.isDone()) {
+            if (killed) throw new RuntimeException(new InterruptedException("LoadDistributor was killed"));
+            if (spins < SPIN_LIMIT) {
+                spins++;
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(this);
             }
         }
+        recordThreadTimes(current, System.nanoTime() - startTime, preferredNumberOfThreads);
+
+        Throwable failure = current.failure.get();
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private void recordThreadTimes(Phase current, long duration, int threads) {
+        if (busyNanos.length < threads) {
+            busyNanos = Arrays.copyOf(busyNanos, threads);
+            idleNanos = Arrays.copyOf(idleNanos, threads);
+        }
+        for (int thread = 0; thread < threads; thread++) {
+            // threads without a batch in this phase were idle all the time
+            long busy = thread < current.busyNanos.length ? current.busyNanos[thread] : 0;
+            busyNanos[thread] += busy;
+            idleNanos[thread] += Math.max(0, duration - busy);
+        }
+    }
+
+    /**
+     * @return for each thread, the time spent on processing ranges since the last {@link #resetThreadTimes()},
+     * in nanoseconds.
+     * Call this from the thread that distributes the load.
+     */
+    public long[] getBusyNanos() {
+        return busyNanos.clone();
+    }
+
+    /**
+     * @return for each thread, the time spent on waiting for the other threads to finish
+     * since the last {@link #resetThreadTimes()}, in nanoseconds.
+     * This also includes the time that it took the thread to wake up.
+     * Call this from the thread that distributes the load.
+     */
+    public long[] getIdleNanos() {
+        return idleNanos.clone();
+    }
+
+    /**
+     * Sets the times returned by {@link #getBusyNanos()} and {@link #getIdleNanos()} to zero.
+     * Call this from the thread that distributes the load.
+     */
+    public void resetThreadTimes() {
+        busyNanos = new long[0];
+        idleNanos = new long[0];
+    }
+
+    /**
+     * Starts or stops workers so that there are exactly <code>count</code> of them.
+     */
+    private void ensureWorkers(int count) {
+        if (count == workers.length) return;
+        for (int i = count; i < workers.length; i++) {
+            workers[i].stopped = true;
+            LockSupport.unpark(workers[i]);
+        }
+        int previousCount = workers.length;
+        workers = Arrays.copyOf(workers, count);
+        for (int i = previousCount; i < count; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
     }
 
     /**
-     * Kills all threads in the thread pool without waiting for them to finish.
+     * Stops all worker threads without waiting for them to finish.
+     * Workers that are processing a range finish that range first.
+     * The LoadDistributor can't be used anymore afterwards.
      */
     public void kill() {
-        threadPool.shutdownNow();
+        killed = true;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker);
+        }
     }
 }
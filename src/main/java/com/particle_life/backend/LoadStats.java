@@ -0,0 +1,77 @@
+package com.particle_life.backend;
+
+/**
+ * How the work of one {@link Physics#update()} was spread over the threads,
+ * and how the particles were spread over the containers.
+ * <p>
+ * The per-thread arrays are indexed like in {@link LoadDistributor}:
+ * index 0 is the thread that calls {@link Physics#update()}, the others are the workers.
+ *
+ * @param busyNanos      time each thread spent on processing particles
+ * @param idleNanos      time each thread spent on waiting for the other threads
+ * @param pairsEvaluated number of pairs each thread checked when computing the velocities,
+ *                       counted like in {@link Physics#countCandidatePairs()}
+ *                       (not counted for {@link ForceEngine#PAIRWISE})
+ * @param nx             number of containers in x direction
+ * @param ny             number of containers in y direction
+ * @param cellSize       width and height of the containers, except for the last ones in each row and column,
+ *                       which extend to the border
+ * @param cellCounts     number of particles in container <code>(cx, cy)</code> at index <code>cx + cy * nx</code>
+ * @see Physics#recordLoadStats
+ */
+public record LoadStats(long[] busyNanos, long[] idleNanos, long[] pairsEvaluated,
+                        int nx, int ny, double cellSize, int[] cellCounts,
+                        int maxOccupancy, double meanOccupancy,
+                        int medianOccupancy, int p90Occupancy, int p99Occupancy) {
+
+    static LoadStats of(long[] busyNanos, long[] idleNanos, long[] pairsEvaluated,
+                        int nx, int ny, double cellSize, int[] cellCounts) {
+        int max = 0;
+        long total = 0;
+        for (int count : cellCounts) {
+            max = Math.max(max, count);
+            total += count;
+        }
+
+        // percentiles via counting, as the occupancies are small numbers
+        int[] cellsWithOccupancy = new int[max + 1];
+        for (int count : cellCounts) {
+            cellsWithOccupancy[count]++;
+        }
+        int[] percentiles = new int[3];
+        double[] p = {0.5, 0.9, 0.99};
+        int k = 0;
+        long cumulative = 0;
+        for (int occupancy = 0; occupancy <= max && k < p.length; occupancy++) {
+            cumulative += cellsWithOccupancy[occupancy];
+            while (k < p.length && cumulative >= Math.ceil(p[k] * cellCounts.length)) {
+                percentiles[k++] = occupancy;
+            }
+        }
+        while (k < p.length) {
+            percentiles[k++] = max;
+        }
+
+        return new LoadStats(busyNanos, idleNanos, pairsEvaluated, nx, ny, cellSize, cellCounts,
+                max, cellCounts.length > 0 ? total / (double) cellCounts.length : 0,
+                percentiles[0], percentiles[1], percentiles[2]);
+    }
+
+    public int threadCount() {
+        return busyNanos.length;
+    }
+
+    /**
+     * @return the busy time of the slowest thread divided by the average busy time,
+     * i.e. 1 if the work was perfectly balanced
+     */
+    public double imbalance() {
+        long max = 0;
+        long sum = 0;
+        for (long busy : busyNanos) {
+            max = Math.max(max, busy);
+            sum += busy;
+        }
+        return sum > 0 ? max * busyNanos.length / (double) sum : 1;
+    }
+}
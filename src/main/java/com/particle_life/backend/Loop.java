@@ -2,6 +2,7 @@ package com.particle_life.backend;
 
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -44,6 +45,10 @@ public class Loop {
     private final AtomicBoolean loopShouldRun = new AtomicBoolean(false);
 
     private final LinkedBlockingDeque<Runnable> commandQueue = new LinkedBlockingDeque<>();
+    /**
+     * Size of {@link #commandQueue}, which can be read without locking the queue.
+     */
+    private final AtomicInteger commandQueueSize = new AtomicInteger();
     private final AtomicReference<Runnable> once = new AtomicReference<>(null);
 
     /**
@@ -70,9 +75,18 @@ public class Loop {
      */
     public void enqueue(Runnable cmd) {
         //todo: debug print if some GUI elements spam commands
+        // count before adding, so that the size can't be observed to be negative after the command was processed
+        commandQueueSize.incrementAndGet();
         commandQueue.addLast(cmd);
     }
 
+    /**
+     * @return how many commands passed to {@link #enqueue(Runnable)} are still waiting to be executed
+     */
+    public int getQueueSize() {
+        return commandQueueSize.get();
+    }
+
     /**
      * The passed command will be executed in the next iteration of the loop thread.
      * If this method is called again before the next iteration of the loop thread,
@@ -87,9 +101,19 @@ public class Loop {
     }
 
     private void processCommandQueue() {
+        LoopCommandsEvent event = new LoopCommandsEvent();
+        event.begin();
+        int commandCount = 0;
         Runnable cmd;
         while ((cmd = commandQueue.pollFirst()) != null) {
+            commandQueueSize.decrementAndGet();
             cmd.run();
+            commandCount++;
+        }
+        event.end();
+        if (commandCount > 0 && event.shouldCommit()) {  // most iterations have nothing to do
+            event.commandCount = commandCount;
+            event.commit();
         }
     }
 
@@ -0,0 +1,13 @@
+package com.particle_life.backend;
+
+import jdk.jfr.*;
+
+@Name("com.particle_life.LoopCommands")
+@Label("Loop Commands")
+@Category({"Particle Life", "Loop"})
+@Description("Processing of the commands that were passed to Loop.enqueue()")
+class LoopCommandsEvent extends Event {
+
+    @Label("Command Count")
+    int commandCount;
+}
@@ -0,0 +1,126 @@
+package com.particle_life.backend;
+
+import java.util.Arrays;
+
+/**
+ * How many pairs of particles one {@link Physics#update()} looked at when computing the velocities,
+ * and how many of them actually interacted.
+ * <p>
+ * If only a small fraction of the candidates is accepted, most of the time is spent on rejecting
+ * particles that are too far away, i.e. the containers are too large for the current <code>rmax</code>.
+ * <p>
+ * Not every force engine can count the pairs (see {@link ForceEngine#countsPairs()}).
+ * Then the census only tells which engine was used, and all counts are 0.
+ *
+ * @param forceEngine the force engine that was used in that step
+ * @param candidates pairs whose distance was computed
+ *                   (unlike in {@link Physics#countCandidatePairs()}, particles aren't paired with themselves)
+ * @param accepted   pairs that were closer than or at <code>rmax</code>, i.e. that were passed to the accelerator
+ * @param insideCore accepted pairs that were closer than <code>beta * rmax</code>,
+ *                   i.e. inside the repulsive core of the {@link DefaultAccelerator}
+ *                   (see {@link Physics#pairCensusBeta})
+ * @param typeCount  number of types
+ * @param typePairs  accepted pairs with a particle of type <code>i</code> being accelerated
+ *                   by a particle of type <code>j</code>, at index <code>i * typeCount + j</code>
+ * @see Physics#recordPairCensus
+ */
+public record PairCensus(ForceEngine forceEngine, long candidates, long accepted, long insideCore, int typeCount, long[] typePairs) {
+
+    /**
+     * @return a census saying that the given force engine can't count the pairs
+     */
+    static PairCensus unavailable(ForceEngine forceEngine) {
+        return new PairCensus(forceEngine, 0, 0, 0, 0, new long[0]);
+    }
+
+    /**
+     * @return whether the pairs were counted, i.e. whether the {@link #forceEngine()} {@link ForceEngine#countsPairs() counts pairs}
+     */
+    public boolean isAvailable() {
+        return forceEngine.countsPairs();
+    }
+
+    /**
+     * @return the pairs that were further apart than <code>rmax</code>
+     */
+    public long rejected() {
+        return candidates - accepted;
+    }
+
+    /**
+     * @return accepted pairs divided by candidates, or 0 if there were no candidates
+     */
+    public double acceptanceRatio() {
+        return candidates > 0 ? accepted / (double) candidates : 0;
+    }
+
+    /**
+     * @return the accepted pairs with a particle of type <code>i</code> being accelerated by a particle of type <code>j</code>
+     */
+    public long getTypePairs(int i, int j) {
+        return typePairs[i * typeCount + j];
+    }
+
+    /**
+     * Collects the pairs of one thread. Each thread only writes to its own counter,
+     * so no synchronization is needed until they are merged.
+     */
+    static final class Counter {
+        long candidates = 0;
+        long accepted = 0;
+        long insideCore = 0;
+        final int typeCount;
+        final long[] typePairs;
+
+        Counter(int typeCount) {
+            this.typeCount = typeCount;
+            typePairs = new long[typeCount * typeCount];
+        }
+
+        /**
+         * @param candidates the particles whose distance to one particle was computed, without the particle itself
+         */
+        void countCandidates(long candidates) {
+            this.candidates += candidates;
+        }
+
+        /**
+         * Counts one pair that was passed to the accelerator.
+         *
+         * @param type       type of the particle that is accelerated
+         * @param otherType  type of the particle that accelerates it
+         * @param insideCore whether the pair was closer than <code>beta * rmax</code>
+         */
+        void countAccepted(int type, int otherType, boolean insideCore) {
+            accepted++;
+            if (insideCore) this.insideCore++;
+            typePairs[type * typeCount + otherType]++;
+        }
+
+        void clear() {
+            candidates = 0;
+            accepted = 0;
+            insideCore = 0;
+            Arrays.fill(typePairs, 0);
+        }
+    }
+
+    /**
+     * Sums up the counters of all threads.
+     */
+    static PairCensus merge(Counter[] counters, ForceEngine forceEngine, int typeCount) {
+        long candidates = 0;
+        long accepted = 0;
+        long insideCore = 0;
+        long[] typePairs = new long[typeCount * typeCount];
+        for (Counter counter : counters) {
+            candidates += counter.candidates;
+            accepted += counter.accepted;
+            insideCore += counter.insideCore;
+            for (int k = 0; k < typePairs.length; k++) {
+                typePairs[k] += counter.typePairs[k];
+            }
+        }
+        return new PairCensus(forceEngine, candidates, accepted, insideCore, typeCount, typePairs);
+    }
+}
@@ -2,6 +2,15 @@ package com.particle_life.backend;
 
 import org.joml.Vector3d;
 
+/**
+ * Object view of a single particle.
+ * <p>
+ * The simulation itself doesn't use this class,
+ * it stores all particles in a {@link ParticleStore}.
+ * This class is only kept for compatibility with code that works on individual particle objects.
+ * Use {@link ParticleStore#get(int, Particle)} and {@link ParticleStore#set(int, Particle)}
+ * to convert between the two representations.
+ */
 public class Particle {
     public Vector3d position = new Vector3d(0, 0, 0);
     public Vector3d velocity = new Vector3d(0, 0, 0);
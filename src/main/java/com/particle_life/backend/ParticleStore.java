@@ -0,0 +1,211 @@
+package com.particle_life.backend;
+
+import org.joml.Vector3d;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stores all particles of a simulation as separate primitive arrays
+ * ("structure of arrays") instead of one object per particle.
+ * <p>
+ * Particle <code>i</code> consists of the entries at index <code>i</code>
+ * in each of the columns {@link #x}, {@link #y}, {@link #vx}, {@link #vy}, {@link #type}
+ * and {@link #restingSteps}.
+ * Only the first {@link #size()} entries are valid,
+ * the arrays may be longer than that (see {@link #capacity()}).
+ * <p>
+ * There are no columns for the z-coordinate, as the simulation is 2D for now
+ * and z is always 0 (see {@link Range}).
+ * Accessors that use {@link Vector3d} set z to 0.
+ * <p>
+ * Don't hold on to the array references for longer than necessary,
+ * as they are replaced whenever the capacity changes.
+ *
+ * @see Particle
+ */
+public class ParticleStore {
+
+    public double[] x;
+    public double[] y;
+    public double[] vx;
+    public double[] vy;
+    public int[] type;
+    /**
+     * Number of consecutive steps in which the particle was at rest, see {@link Physics#sleepSteps}.
+     * Set this to 0 if you move a particle or change its type.
+     */
+    public int[] restingSteps;
+
+    private int size;
+
+    public ParticleStore() {
+        this(0);
+    }
+
+    /**
+     * Creates a store with <code>size</code> particles,
+     * each at position (0, 0) with velocity (0, 0) and type 0.
+     */
+    public ParticleStore(int size) {
+        allocate(size);
+        this.size = size;
+    }
+
+    private void allocate(int capacity) {
+        x = x == null ? new double[capacity] : Arrays.copyOf(x, capacity);
+        y = y == null ? new double[capacity] : Arrays.copyOf(y, capacity);
+        vx = vx == null ? new double[capacity] : Arrays.copyOf(vx, capacity);
+        vy = vy == null ? new double[capacity] : Arrays.copyOf(vy, capacity);
+        type = type == null ? new int[capacity] : Arrays.copyOf(type, capacity);
+        restingSteps = restingSteps == null ? new int[capacity] : Arrays.copyOf(restingSteps, capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return type.length;
+    }
+
+    /**
+     * Makes sure that the arrays can hold at least <code>capacity</code> particles.
+     * Existing particles are kept.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > capacity()) {
+            allocate(capacity);
+        }
+    }
+
+    /**
+     * Changes the number of particles.
+     * The first <code>min(size(), newSize)</code> particles are kept.
+     * New particles are at position (0, 0) with velocity (0, 0) and type 0.
+     *
+     * @param newSize must be 0 or greater
+     */
+    public void resize(int newSize) {
+        if (newSize < 0) throw new IllegalArgumentException("size must not be negative, got %d".formatted(newSize));
+        if (newSize > capacity()) {
+            // grow by 50% to make repeated small additions (e.g. by the brush) cheap
+            allocate(Math.max(newSize, capacity() + capacity() / 2));
+        }
+        if (newSize > size) {
+            clear(size, newSize);
+        }
+        size = newSize;
+    }
+
+    private void clear(int from, int to) {
+        Arrays.fill(x, from, to, 0);
+        Arrays.fill(y, from, to, 0);
+        Arrays.fill(vx, from, to, 0);
+        Arrays.fill(vy, from, to, 0);
+        Arrays.fill(type, from, to, 0);
+        Arrays.fill(restingSteps, from, to, 0);
+    }
+
+    /**
+     * Copies particle <code>srcIndex</code> of <code>src</code> to index <code>i</code> of this store.
+     * <code>src</code> may be this store.
+     */
+    public void set(int i, ParticleStore src, int srcIndex) {
+        x[i] = src.x[srcIndex];
+        y[i] = src.y[srcIndex];
+        vx[i] = src.vx[srcIndex];
+        vy[i] = src.vy[srcIndex];
+        type[i] = src.type[srcIndex];
+        restingSteps[i] = src.restingSteps[srcIndex];
+    }
+
+    public void swap(int i, int j) {
+        double hx = x[i];
+        x[i] = x[j];
+        x[j] = hx;
+        double hy = y[i];
+        y[i] = y[j];
+        y[j] = hy;
+        double hvx = vx[i];
+        vx[i] = vx[j];
+        vx[j] = hvx;
+        double hvy = vy[i];
+        vy[i] = vy[j];
+        vy[j] = hvy;
+        int ht = type[i];
+        type[i] = type[j];
+        type[j] = ht;
+        int hr = restingSteps[i];
+        restingSteps[i] = restingSteps[j];
+        restingSteps[j] = hr;
+    }
+
+    /**
+     * Randomly permutes the particles.
+     */
+    public void shuffle() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = size - 1; i > 0; i--) {
+            swap(i, random.nextInt(i + 1));
+        }
+    }
+
+    public ParticleStore deepCopy() {
+        ParticleStore copy = new ParticleStore(size);
+        System.arraycopy(x, 0, copy.x, 0, size);
+        System.arraycopy(y, 0, copy.y, 0, size);
+        System.arraycopy(vx, 0, copy.vx, 0, size);
+        System.arraycopy(vy, 0, copy.vy, 0, size);
+        System.arraycopy(type, 0, copy.type, 0, size);
+        System.arraycopy(restingSteps, 0, copy.restingSteps, 0, size);
+        return copy;
+    }
+
+    // COMPATIBILITY WITH VECTOR / OBJECT BASED CODE:
+
+    public Vector3d getPosition(int i, Vector3d dest) {
+        return dest.set(x[i], y[i], 0);
+    }
+
+    public Vector3d getVelocity(int i, Vector3d dest) {
+        return dest.set(vx[i], vy[i], 0);
+    }
+
+    public void setPosition(int i, Vector3d position) {
+        x[i] = position.x;
+        y[i] = position.y;
+    }
+
+    public void setVelocity(int i, Vector3d velocity) {
+        vx[i] = velocity.x;
+        vy[i] = velocity.y;
+    }
+
+    /**
+     * Copies particle <code>i</code> into <code>dest</code>.
+     *
+     * @return <code>dest</code>
+     */
+    public Particle get(int i, Particle dest) {
+        getPosition(i, dest.position);
+        getVelocity(i, dest.velocity);
+        dest.type = type[i];
+        return dest;
+    }
+
+    /**
+     * Creates a new {@link Particle} object with the values of particle <code>i</code>.
+     * Changing the returned object won't affect this store, use {@link #set(int, Particle)} for that.
+     */
+    public Particle get(int i) {
+        return get(i, new Particle());
+    }
+
+    public void set(int i, Particle p) {
+        setPosition(i, p.position);
+        setVelocity(i, p.velocity);
+        type[i] = p.type;
+        restingSteps[i] = 0;
+    }
+}
@@ -2,29 +2,159 @@ package com.particle_life.backend;
 
 import org.joml.Vector3d;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 public class Physics {
 
     private static final int DEFAULT_MATRIX_SIZE = 7;
+    /**
+     * Number of particles that are processed between checks whether the update should stop.
+     */
+    private static final int STOP_CHECK_INTERVAL = 256;
 
     public PhysicsSettings settings = new PhysicsSettings();
 
-    public Particle[] particles;
+    /**
+     * All particles of the simulation, stored as primitive columns.
+     * Note that this object is swapped with an internal buffer during each {@link #update()},
+     * so don't keep a reference to it across updates.
+     */
+    public ParticleStore particles;
 
     // buffers for sorting by containers:
     private int[] containers;
-    private int[][] containerNeighborhood;
-    private Particle[] particlesBuffer;
+    private ParticleStore particlesBuffer = new ParticleStore();
+    /**
+     * Container index of each particle (before sorting).
+     */
+    private int[] particleContainers = new int[0];
+    /**
+     * Number of particles per batch and container while sorting.
+     */
+    private int[] containerCounts = new int[0];
+    private int[] rangeOffsets = new int[0];
+
+    /**
+     * The containers have a size of <code>rmax / containerSubdivision</code>.
+     * Smaller containers mean that fewer particles outside of rmax are checked,
+     * but more containers need to be visited for each particle.
+     * Values smaller than 1 are treated as 1.
+     */
+    public int containerSubdivision = 1;
+    /**
+     * The order of the containers in memory, and thus of the particles in {@link #particles}.
+     */
+    public ContainerOrder containerOrder = ContainerOrder.ROW_MAJOR;
 
     // container layout:
     private int nx;
     private int ny;
-    private double containerSize = 0.065;//todo: implement makeContainerNeighborhood() to make this independent of rmax
+    private double containerSize;
+    /**
+     * The position of container <code>(cx, cy)</code> in {@link #containers}
+     * is <code>containerRanks[cx + cy * nx]</code>, see {@link #containerOrder}.
+     */
+    private int[] containerRanks;
+    /**
+     * Offsets of all containers that can contain particles within rmax,
+     * including the container itself.
+     */
+    private int[][] containerNeighborhood;
+    /**
+     * The half of {@link #containerNeighborhood} that lies "after" the container itself,
+     * i.e. in the same row to the right or in one of the following rows.
+     * The container itself is not included.
+     */
+    private int[][] forwardContainerNeighborhood;
+    /**
+     * Whether some offsets in the neighborhood lead to the same container,
+     * which can happen with periodic boundaries if there are only few containers.
+     * Duplicates are removed from {@link #containerNeighborhood},
+     * but {@link #forwardContainerNeighborhood} can't be used in that case.
+     */
+    private boolean containerNeighborhoodWraps;
+    // state that the container layout was built for:
+    private double layoutRange = -1;
+    private boolean layoutWrap;
+    private int layoutSubdivision = -1;
+    private ContainerOrder layoutOrder;
 
+    /**
+     * If this implements {@link ScalarAccelerator}, it is used directly.
+     * Otherwise, it is wrapped into an adapter (see {@link ScalarAccelerator#of(Accelerator)}),
+     * which is slower, as it allocates a vector for each pair of particles.
+     */
     public Accelerator accelerator;
+    /**
+     * The {@link #accelerator} as {@link ScalarAccelerator}, updated at the beginning of each {@link #update()}.
+     */
+    private ScalarAccelerator scalarAccelerator;
+    private Accelerator scalarAcceleratorSource;
+    /**
+     * The table used for looking up forces in the current step, or <code>null</code> if the
+     * accelerator is called directly.
+     * This is the {@link #accelerator} if it is a {@link TabulatedAccelerator}.
+     * Otherwise, the {@link ForceEngine#VECTORIZED vectorized engine} uses its own table,
+     * unless the accelerator is a {@link DefaultAccelerator}.
+     */
+    private TabulatedAccelerator tabulatedAccelerator;
+    private TabulatedAccelerator vectorizedTable;
+    /**
+     * The matrix entries, row by row, for the {@link ForceEngine#VECTORIZED vectorized engine}
+     * if it evaluates the {@link DefaultAccelerator} directly.
+     */
+    private double[] vectorizedMatrix = new double[0];
+
+    /**
+     * How the forces between particles are evaluated.
+     * If the selected engine is not {@link ForceEngine#isAvailable() available},
+     * {@link ForceEngine#SCALAR} is used.
+     */
+    public ForceEngine forceEngine = ForceEngine.SCALAR;
+    /**
+     * The engine that is actually used in the current step.
+     */
+    private ForceEngine activeForceEngine = ForceEngine.SCALAR;
+    /**
+     * The neighbor lists contain all particles within <code>rmax * (1 + neighborListSkin)</code>,
+     * see {@link ForceEngine#NEIGHBOR_LIST}.
+     * A larger skin means that the lists need to be rebuilt less often,
+     * but also that they contain more particles that are out of range.
+     */
+    public double neighborListSkin = 0.3;
+    /**
+     * Neighbor lists in compressed sparse row format:
+     * the neighbors of particle <code>i</code> are at
+     * <code>neighborStart[i] ... neighborStart[i + 1] - 1</code> in {@link #neighbors}.
+     */
+    private int[] neighborStart = new int[1];
+    private int[] neighbors = new int[0];
+    // state that the neighbor lists were built for:
+    private ParticleStore neighborListParticles;
+    private double[] neighborListX = new double[0];
+    private double[] neighborListY = new double[0];
+    private double neighborListRange = -1;
+    private boolean neighborListWrap;
+    private double[] batchMaxDisplacements = new double[0];
+    /**
+     * Buffers for building the neighbor lists, one per batch of particles.
+     */
+    private int[][] batchNeighbors = new int[0][];
+    private final ThreadLocal<int[]> vectorIndices = ThreadLocal.withInitial(() -> new int[VectorizedKernel.LANES]);
+    /**
+     * Copies of the positions in single precision, see {@link ForceEngine#SINGLE_PRECISION}.
+     */
+    private float[] floatX = new float[0];
+    private float[] floatY = new float[0];
+    /**
+     * Each thread sums up the accelerations of a particle in its own accumulator.
+     */
+    private final ThreadLocal<double[]> accelerationAccumulator = ThreadLocal.withInitial(() -> new double[2]);
     public MatrixGenerator matrixGenerator;
     public PositionSetter positionSetter;
     /**
@@ -35,13 +165,139 @@ public class Physics {
     public TypeSetter typeSetter;
 
     public int preferredNumberOfThreads = 12;
+    public LoadBalancing loadBalancing = LoadBalancing.EVEN;
+    /**
+     * Number of chunks per thread for {@link LoadBalancing#COST_BALANCED}.
+     * More chunks even out the work better, but each chunk has some overhead.
+     */
+    public int chunksPerThread = 8;
+    /**
+     * If this is <code>true</code>, {@link #preferredNumberOfThreads} and {@link #chunksPerThread}
+     * are adjusted while the simulation is running, see {@link AutoTuner}.
+     */
+    public boolean autoTune = false;
+    private final AutoTuner autoTuner = new AutoTuner();
     private final LoadDistributor loadDistributor = new LoadDistributor();
+    /**
+     * Estimated number of distance checks for the particles of each container.
+     */
+    private long[] containerCosts = new long[0];
+    /**
+     * Chunk <code>k</code> consists of the particles <code>chunkBounds[k] ... chunkBounds[k + 1] - 1</code>.
+     */
+    private int[] chunkBounds = new int[0];
+
+    /**
+     * Particles that moved slower than {@link #sleepVelocity} for this many consecutive steps fall asleep.
+     * The forces on a sleeping particle aren't computed and its velocity is set to 0,
+     * but only as long as all particles in the surrounding containers are asleep as well.
+     * So as soon as a neighbor starts moving, the particles around it are computed again
+     * and wake up if they are pushed.
+     * A value of 0 disables sleeping.
+     * <p>
+     * Only the engines that compute each particle on its own
+     * ({@link ForceEngine#SCALAR}, {@link ForceEngine#VECTORIZED} and {@link ForceEngine#SINGLE_PRECISION})
+     * support sleeping, the others ignore this.
+     * <p>
+     * If you move particles or change their types yourself,
+     * reset their {@link ParticleStore#restingSteps} or call {@link #wakeParticles()}.
+     */
+    public int sleepSteps = 0;
+    /**
+     * Speed below which a particle counts as resting, in units of rmax per second.
+     * As a net force would accelerate the particle above this speed within a few steps,
+     * this also means that the net force on a resting particle is small.
+     */
+    public double sleepVelocity = 0.05;
+    private boolean[] containerAsleep = new boolean[0];
+    /**
+     * Whether the particles of each container are skipped in the current step,
+     * i.e. whether all containers in its neighborhood are asleep.
+     */
+    private boolean[] containerSkipped = new boolean[0];
+    private volatile int sleepingCount = 0;
+    // state that the sleeping particles came to rest in:
+    private boolean sleepStateValid = false;
+    private PhysicsSettings sleepSettings;
+    private Accelerator sleepAccelerator;
+    private int sleepParticleCount;
 
     /**
      * This is used to stop the updating mid-particle.
      */
     private final AtomicBoolean updateThreadsShouldRun = new AtomicBoolean(false);
 
+    /**
+     * How many steps are remembered in the time histories of the phases.
+     *
+     * @see #getPhaseTimes(UpdatePhase)
+     */
+    public static final int PHASE_HISTORY_SIZE = 240;
+
+    /**
+     * Durations of each {@link UpdatePhase} in the last {@link #PHASE_HISTORY_SIZE} calls of {@link #update()}.
+     */
+    private final TimeHistory[] phaseTimes = new TimeHistory[UpdatePhase.values().length];
+    /**
+     * Durations of each {@link UpdatePhase} since this object was created, for exporting them as metrics.
+     *
+     * @see #getPhaseHistogram(UpdatePhase)
+     */
+    private final Histogram[] phaseHistograms = new Histogram[UpdatePhase.values().length];
+    private static final long[] PHASE_HISTOGRAM_BOUNDS = {
+            100_000L, 250_000L, 500_000L,  // 0.1 ms ...
+            1_000_000L, 2_500_000L, 5_000_000L,
+            10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L,
+            1_000_000_000L,  // ... 1 s
+    };
+    private final AtomicLong stepCount = new AtomicLong();
+
+    /**
+     * If this is <code>true</code>, each {@link #update()} records how the work was spread over the threads
+     * and how the particles are spread over the containers, see {@link #getLoadStats()}.
+     * This takes some extra time.
+     */
+    public boolean recordLoadStats = false;
+    private volatile LoadStats loadStats = null;
+    /**
+     * {@link #recordLoadStats} at the beginning of the current step.
+     */
+    private boolean recordingLoadStats = false;
+    /**
+     * Pairs checked by each thread in this step, see {@link LoadDistributor#currentThreadIndex()}.
+     */
+    private long[] threadPairs = new long[0];
+    /**
+     * Number of particles in the neighborhood of each container, at the container's position in {@link #containers}.
+     */
+    private long[] neighborhoodCounts = new long[0];
+    /**
+     * {@link #countCandidatePairs()} of the current step, or -1 if it wasn't needed yet,
+     * see {@link #getStepCandidatePairs()}.
+     */
+    private long stepCandidatePairs = -1;
+
+    /**
+     * If this is <code>true</code>, each {@link #update()} counts the pairs of particles
+     * that were looked at when computing the velocities, see {@link #getPairCensus()}.
+     * This is cheap, but not free, as each accepted pair increments some counters.
+     * <p>
+     * Not all force engines can count the pairs, see {@link ForceEngine#countsPairs()}.
+     */
+    public boolean recordPairCensus = false;
+    /**
+     * Accepted pairs closer than <code>pairCensusBeta * rmax</code> are counted as inside the repulsive core.
+     */
+    public double pairCensusBeta = DefaultAccelerator.BETA;
+    private volatile PairCensus pairCensus = null;
+    /**
+     * The counters of each thread if the pairs are counted in this step, or else <code>null</code>,
+     * see {@link LoadDistributor#currentThreadIndex()}.
+     */
+    private PairCensus.Counter[] censusCounters = null;
+    private PairCensus.Counter[] censusCountersCache = new PairCensus.Counter[0];
+
 
     // INITIALIZATION:
 
@@ -72,36 +328,80 @@ public class Physics {
         this.matrixGenerator = matrixGenerator;
         this.typeSetter = typeSetter;
 
-        calcNxNy();
-        makeContainerNeighborhood();
+        for (int i = 0; i < phaseTimes.length; i++) {
+            phaseTimes[i] = new TimeHistory(PHASE_HISTORY_SIZE);
+            phaseHistograms[i] = new Histogram(PHASE_HISTOGRAM_BOUNDS);
+        }
 
         generateMatrix();
         setParticleCount(10000);  // uses current position setter to create particles
     }
 
+    /**
+     * Recalculates the container size, order and neighborhood,
+     * but only if rmax, wrap, the {@link #containerSubdivision} or the {@link #containerOrder} changed.
+     * <p>
+     * The neighborhood covers rmax, or the range of the neighbor lists if they are used.
+     */
+    private void updateContainerLayout() {
+        final double range = activeForceEngine == ForceEngine.NEIGHBOR_LIST ? getNeighborListRange() : settings.rmax;
+        final int subdivision = Math.max(1, containerSubdivision);
+        if (range == layoutRange && settings.wrap == layoutWrap && subdivision == layoutSubdivision
+                && containerOrder == layoutOrder) return;
+        layoutRange = range;
+        layoutWrap = settings.wrap;
+        layoutSubdivision = subdivision;
+        layoutOrder = containerOrder;
+
+        containerSize = range / subdivision;
+        calcNxNy();
+        containerRanks = containerOrder.makeRanks(nx, ny);
+        makeContainerNeighborhood(subdivision);
+    }
+
     private void calcNxNy() {
-        nx = (int) Math.floor(1 / containerSize);
-        ny = (int) Math.floor(1 / containerSize);
+        // the last container in each row / column may be larger than containerSize
+        nx = Math.max(1, (int) Math.floor(1 / containerSize));
+        ny = Math.max(1, (int) Math.floor(1 / containerSize));
     }
 
-    private void makeContainerNeighborhood() {
-        containerNeighborhood = new int[][]{
-                new int[]{-1, -1},
-                new int[]{0, -1},
-                new int[]{1, -1},
-                new int[]{-1, 0},
-                new int[]{0, 0},
-                new int[]{1, 0},
-                new int[]{-1, 1},
-                new int[]{0, 1},
-                new int[]{1, 1}
-        };
+    /**
+     * @param radius range of the neighborhood in units of containerSize
+     */
+    private void makeContainerNeighborhood(int radius) {
+        List<int[]> neighborhood = new ArrayList<>();
+        List<int[]> forwardNeighborhood = new ArrayList<>();
+        boolean[] visited = settings.wrap ? new boolean[nx * ny] : null;
+        containerNeighborhoodWraps = false;
+
+        for (int dy = -radius; dy <= radius; dy++) {
+            for (int dx = -radius; dx <= radius; dx++) {
+
+                // skip containers whose closest point is out of range
+                // (all containers are at least containerSize wide)
+                int gapX = Math.max(0, Math.abs(dx) - 1);
+                int gapY = Math.max(0, Math.abs(dy) - 1);
+                if (gapX * gapX + gapY * gapY > radius * radius) continue;
+
+                if (visited != null) {
+                    // with few containers, different offsets can wrap to the same container
+                    int wrapped = Math.floorMod(dx, nx) + Math.floorMod(dy, ny) * nx;
+                    if (visited[wrapped]) {
+                        containerNeighborhoodWraps = true;
+                        continue;
+                    }
+                    visited[wrapped] = true;
+                }
+
+                neighborhood.add(new int[]{dx, dy});
+                if (dy > 0 || (dy == 0 && dx > 0)) {
+                    forwardNeighborhood.add(new int[]{dx, dy});
+                }
+            }
+        }
 
-        //todo:
-        // top left corner
-        // top right corner
-        // bottom left corner
-        // bottom right corner
+        containerNeighborhood = neighborhood.toArray(new int[0][]);
+        forwardContainerNeighborhood = forwardNeighborhood.toArray(new int[0][]);
     }
 
     /**
@@ -117,22 +417,368 @@ public class Physics {
 
         updateThreadsShouldRun.set(true);
 
-        makeContainers();
+        stepCandidatePairs = -1;
+        recordingLoadStats = recordLoadStats;
+        if (recordingLoadStats) {
+            loadDistributor.resetThreadTimes();
+            threadPairs = new long[preferredNumberOfThreads];
+        }
+
+        final long stepStart = System.nanoTime();
+        long time = stepStart;
+        PhysicsPhaseEvent event = new PhysicsPhaseEvent();
+        event.begin();
+        prepareForces();
+        sortParticles();
+        time = recordPhase(UpdatePhase.SORT, time, event);
+
+        event = new PhysicsPhaseEvent();
+        event.begin();
+        updateVelocities();
+        if (recordingLoadStats && activeForceEngine != ForceEngine.PAIRWISE) {
+            // the velocity pass already counted the pairs of each thread
+            stepCandidatePairs = 0;
+            for (long pairs : threadPairs) {
+                stepCandidatePairs += pairs;
+            }
+        }
+        time = recordPhase(UpdatePhase.VELOCITY, time, event);
 
-        loadDistributor.distributeLoadEvenly(particles.length, preferredNumberOfThreads, i -> {
-            if (!updateThreadsShouldRun.get()) return false;
-            updateVelocity(i);
-            return true;
-        });
-        loadDistributor.distributeLoadEvenly(particles.length, preferredNumberOfThreads, i -> {
-            if (!updateThreadsShouldRun.get()) return false;
-            updatePosition(i);
-            return true;
-        });
+        event = new PhysicsPhaseEvent();
+        event.begin();
+        updatePositions();
+        final long stepEnd = recordPhase(UpdatePhase.POSITION, time, event);
+        stepCount.incrementAndGet();
+
+        if (recordingLoadStats) {
+            loadStats = LoadStats.of(loadDistributor.getBusyNanos(), loadDistributor.getIdleNanos(),
+                    threadPairs.clone(), nx, ny, containerSize, getCellCounts());
+        }
+        if (censusCounters != null) {
+            pairCensus = PairCensus.merge(censusCounters, activeForceEngine, settings.matrix.size());
+            censusCounters = null;
+        }
+
+        if (autoTune) {
+            if (updateThreadsShouldRun.get()) {  // a stopped step would spoil the measurement
+                autoTuner.afterStep(this, stepEnd - stepStart);
+            }
+        } else {
+            autoTuner.stop(this);
+        }
 
         updateThreadsShouldRun.set(false);
     }
 
+    /**
+     * @param startTime when the phase started, from {@link System#nanoTime()}
+     * @param event     the flight recorder event that was started together with the phase
+     * @return when the next phase starts, i.e. after the event was committed
+     */
+    private long recordPhase(UpdatePhase phase, long startTime, PhysicsPhaseEvent event) {
+        long endTime = System.nanoTime();
+        phaseTimes[phase.ordinal()].add(endTime - startTime);
+        phaseHistograms[phase.ordinal()].record(endTime - startTime);
+        event.end();
+        if (event.shouldCommit()) {
+            event.phase = phase.name();
+            event.set(this);  // may count the candidate pairs, which must not be timed as part of the next phase
+            event.commit();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * @return how long the given phase took in the last {@link #update()}, in nanoseconds.
+     * Call this from the thread that calls {@link #update()}.
+     */
+    public long getPhaseNanos(UpdatePhase phase) {
+        return phaseTimes[phase.ordinal()].getLastNanos();
+    }
+
+    /**
+     * @return the durations of the given phase in the last {@link #PHASE_HISTORY_SIZE} calls of {@link #update()}.
+     * This is only safe to access from the thread that calls {@link #update()}.
+     */
+    public TimeHistory getPhaseTimes(UpdatePhase phase) {
+        return phaseTimes[phase.ordinal()];
+    }
+
+    /**
+     * @return the durations of the given phase in all calls of {@link #update()} so far.
+     * This is safe to read from any thread.
+     */
+    public Histogram getPhaseHistogram(UpdatePhase phase) {
+        return phaseHistograms[phase.ordinal()];
+    }
+
+    /**
+     * @return the load statistics of the last {@link #update()} with {@link #recordLoadStats} enabled,
+     * or <code>null</code> if there was none yet.
+     * This is safe to call from any thread.
+     */
+    public LoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    /**
+     * @return the number of particles in container <code>(cx, cy)</code> at index <code>cx + cy * nx</code>
+     */
+    private int[] getCellCounts() {
+        int[] cellCounts = new int[nx * ny];
+        for (int cy = 0; cy < ny; cy++) {
+            for (int cx = 0; cx < nx; cx++) {
+                int ci = containerRanks[cx + cy * nx];
+                cellCounts[cx + cy * nx] = containers[ci] - (ci == 0 ? 0 : containers[ci - 1]);
+            }
+        }
+        return cellCounts;
+    }
+
+    /**
+     * @return how many times {@link #update()} has finished so far.
+     * This is safe to call from any thread.
+     */
+    public long getStepCount() {
+        return stepCount.get();
+    }
+
+    /**
+     * Runs a single phase of {@link #update()} on its own, e.g. <code>runPhase(this::makeContainers)</code>.
+     * This is only meant for benchmarks.
+     * All phases must have run at least once before (e.g. via {@link #update()}),
+     * so that the state they depend on exists.
+     */
+    void runPhase(Runnable phase) {
+        updateThreadsShouldRun.set(true);
+        try {
+            phase.run();
+        } finally {
+            updateThreadsShouldRun.set(false);
+        }
+    }
+
+    /**
+     * Selects the force engine for this step and updates the lookup table if necessary.
+     */
+    void prepareForces() {
+        if (accelerator != scalarAcceleratorSource) {
+            scalarAccelerator = ScalarAccelerator.of(accelerator);
+            scalarAcceleratorSource = accelerator;
+        }
+        activeForceEngine = forceEngine.isAvailable() ? forceEngine : ForceEngine.SCALAR;
+        if (accelerator instanceof TabulatedAccelerator t) {
+            tabulatedAccelerator = t;
+        } else if (activeForceEngine == ForceEngine.VECTORIZED && accelerator.getClass() == DefaultAccelerator.class) {
+            // the vectorized engine has the default force law built in (but not any subclasses)
+            tabulatedAccelerator = null;
+            updateVectorizedMatrix();
+        } else if (activeForceEngine == ForceEngine.VECTORIZED) {
+            // other force laws can only be evaluated via a lookup table
+            if (vectorizedTable == null || vectorizedTable.accelerator != scalarAccelerator) {
+                vectorizedTable = new TabulatedAccelerator(scalarAccelerator);
+            }
+            tabulatedAccelerator = vectorizedTable;
+        } else {
+            tabulatedAccelerator = null;
+        }
+        if (tabulatedAccelerator != null) {
+            tabulatedAccelerator.update(settings.matrix, settings.rmax);  // only rebuilds if necessary
+        }
+    }
+
+    private void updateVectorizedMatrix() {
+        Matrix matrix = settings.matrix;
+        int nTypes = matrix.size();
+        if (vectorizedMatrix.length != nTypes * nTypes) {
+            vectorizedMatrix = new double[nTypes * nTypes];
+        }
+        for (int i = 0; i < nTypes; i++) {
+            for (int j = 0; j < nTypes; j++) {
+                vectorizedMatrix[i * nTypes + j] = matrix.get(i, j);
+            }
+        }
+    }
+
+    /**
+     * Sorts the particles into containers, or updates the neighbor lists.
+     */
+    void sortParticles() {
+        if (activeForceEngine == ForceEngine.NEIGHBOR_LIST) {
+            updateNeighborList();  // only sorts the particles into containers if the lists must be rebuilt
+        } else {
+            makeContainers();
+        }
+
+        if (activeForceEngine == ForceEngine.PAIRWISE && containerNeighborhoodWraps) {
+            // the half-shell would contain some containers twice
+            activeForceEngine = ForceEngine.SCALAR;
+        }
+    }
+
+    void updateVelocities() {
+        censusCounters = recordPairCensus ? preparePairCensus() : null;
+        if (recordingLoadStats && activeForceEngine != ForceEngine.NEIGHBOR_LIST) {
+            countNeighborhoods();
+        }
+        if (activeForceEngine == ForceEngine.PAIRWISE) {
+            updateVelocitiesPairwise();
+        } else if (activeForceEngine == ForceEngine.NEIGHBOR_LIST) {
+            forEachParticleBalanced(this::updateVelocityFromNeighborList);
+        } else {
+            IntConsumer velocityUpdate = this::updateVelocity;
+            if (activeForceEngine == ForceEngine.SINGLE_PRECISION) {
+                makeFloatPositions();
+                velocityUpdate = this::updateVelocitySinglePrecision;
+            }
+            if (sleepSteps > 0) {
+                updateSleepingContainers();
+                final IntConsumer awakeVelocityUpdate = velocityUpdate;
+                velocityUpdate = i -> updateVelocityUnlessAsleep(i, awakeVelocityUpdate);
+            }
+            forEachParticleBalanced(velocityUpdate);
+        }
+        if (sleepSteps <= 0 || activeForceEngine == ForceEngine.PAIRWISE
+                || activeForceEngine == ForceEngine.NEIGHBOR_LIST) {
+            // the resting steps weren't counted in this step
+            sleepStateValid = false;
+            sleepingCount = 0;
+        }
+    }
+
+    /**
+     * @return the cleared counters for each thread, or <code>null</code> if the active force engine can't count the pairs,
+     * in which case the census is replaced by one that says so
+     */
+    private PairCensus.Counter[] preparePairCensus() {
+        if (!activeForceEngine.countsPairs()) {
+            pairCensus = PairCensus.unavailable(activeForceEngine);
+            return null;
+        }
+        int typeCount = settings.matrix.size();
+        if (censusCountersCache.length != preferredNumberOfThreads
+                || censusCountersCache.length > 0 && censusCountersCache[0].typePairs.length != typeCount * typeCount) {
+            censusCountersCache = new PairCensus.Counter[preferredNumberOfThreads];
+            for (int thread = 0; thread < preferredNumberOfThreads; thread++) {
+                censusCountersCache[thread] = new PairCensus.Counter(typeCount);
+            }
+        } else {
+            for (PairCensus.Counter counter : censusCountersCache) {
+                counter.clear();
+            }
+        }
+        return censusCountersCache;
+    }
+
+    /**
+     * @return the tuner that adjusts the threads if {@link #autoTune} is enabled.
+     * Its state is safe to read from any thread.
+     */
+    public AutoTuner getAutoTuner() {
+        return autoTuner;
+    }
+
+    /**
+     * @return the pairs counted in the last {@link #update()} with {@link #recordPairCensus} enabled,
+     * or <code>null</code> if there was none yet.
+     * If the force engine of that step can't count the pairs, the census is {@link PairCensus#isAvailable() not available}.
+     * This is safe to call from any thread.
+     */
+    public PairCensus getPairCensus() {
+        return pairCensus;
+    }
+
+    void updatePositions() {
+        forEachParticle(this::updatePosition);
+    }
+
+    /**
+     * Calls <code>action</code> for each particle, distributed over multiple threads.
+     * Stops early if {@link #forceUpdateStop()} is called,
+     * which is checked every {@link #STOP_CHECK_INTERVAL} particles.
+     */
+    private void forEachParticle(IntConsumer action) {
+        loadDistributor.distributeLoadEvenly(particles.size(), preferredNumberOfThreads,
+                (batch, start, stop) -> processParticles(action, start, stop));
+    }
+
+    private void processParticles(IntConsumer action, int start, int stop) {
+        for (int chunkStart = start; chunkStart < stop; chunkStart += STOP_CHECK_INTERVAL) {
+            if (!updateThreadsShouldRun.get()) return;
+            int chunkStop = Math.min(chunkStart + STOP_CHECK_INTERVAL, stop);
+            for (int i = chunkStart; i < chunkStop; i++) {
+                action.accept(i);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #forEachParticle(IntConsumer)}, but takes the {@link #loadBalancing} into account.
+     * This is meant for computing the velocities, as the chunks are balanced by the number of neighbors.
+     * If {@link #recordLoadStats} is enabled, this also counts the pairs checked by each thread.
+     */
+    private void forEachParticleBalanced(IntConsumer action) {
+        LoadDistributor.RangeProcessor processRange = recordingLoadStats
+                ? (batch, start, stop) -> {
+                    processParticles(action, start, stop);
+                    threadPairs[LoadDistributor.currentThreadIndex()] += countRangePairs(start, stop);
+                }
+                : (batch, start, stop) -> processParticles(action, start, stop);
+
+        if (loadBalancing != LoadBalancing.COST_BALANCED) {
+            loadDistributor.distributeLoadEvenly(particles.size(), preferredNumberOfThreads, processRange);
+            return;
+        }
+
+        int chunks = activeForceEngine == ForceEngine.NEIGHBOR_LIST ? makeNeighborListChunks() : makeContainerChunks();
+        loadDistributor.distributeChunks(chunkBounds, chunks, preferredNumberOfThreads, processRange);
+    }
+
+    /**
+     * Fills {@link #neighborhoodCounts} for {@link #countRangePairs(int, int)}.
+     */
+    private void countNeighborhoods() {
+        if (neighborhoodCounts.length != containers.length) {
+            neighborhoodCounts = new long[containers.length];
+        }
+        for (int cy = 0; cy < ny; cy++) {
+            for (int cx = 0; cx < nx; cx++) {
+                neighborhoodCounts[containerRanks[cx + cy * nx]] = countNeighborhoodParticles(cx, cy);
+            }
+        }
+    }
+
+    /**
+     * @return the number of pairs checked for the particles <code>start ... stop - 1</code>,
+     * counted like in {@link #countCandidatePairs()}
+     */
+    private long countRangePairs(int start, int stop) {
+        if (activeForceEngine == ForceEngine.NEIGHBOR_LIST) {
+            return neighborStart[stop] - neighborStart[start];
+        }
+
+        // binary search for the first container that ends after start
+        int low = 0;
+        int high = containers.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (containers[mid] <= start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        long pairs = 0;
+        int begin = low == 0 ? 0 : containers[low - 1];
+        for (int ci = low; ci < containers.length && begin < stop; ci++) {
+            int end = containers[ci];
+            pairs += (long) (Math.min(end, stop) - Math.max(begin, start)) * neighborhoodCounts[ci];
+            begin = end;
+        }
+        return pairs;
+    }
+
     /**
      * Can be used to forcibly stop execution of {@link #update()} mid-particle
      * from another thread.
@@ -141,7 +787,7 @@ public class Physics {
      * corresponding threads to stop as soon as possible.
      * That is, the {@link #update()} method may still run after this method has
      * been called, but it will stop after each thread has finished processing its
-     * current particle.<br>
+     * current chunk of particles.<br>
      * Note that the next call to {@link #update()} will as always start from
      * the beginning of the array, so some particles will have been simulated for one
      * more step than others. But you probably don't have to care about this.
@@ -164,7 +810,93 @@ public class Physics {
      * If the particle count changed, new particles will be created using the active position setter.
      */
     public void setPositions() {
-        Arrays.stream(particles).forEach(this::setPosition);
+        int n = particles.size();
+        for (int i = 0; i < n; i++) {
+            setPosition(i);
+        }
+        wakeParticles();
+    }
+
+    /**
+     * Makes all particles count as moving again, see {@link #sleepSteps}.
+     */
+    public void wakeParticles() {
+        Arrays.fill(particles.restingSteps, 0, particles.size(), 0);
+    }
+
+    /**
+     * @return the number of particles that were skipped in the last step because they were asleep,
+     * see {@link #sleepSteps}
+     */
+    public int getSleepingCount() {
+        return sleepingCount;
+    }
+
+    /**
+     * @return the number of containers in the last step
+     */
+    public int getContainerCount() {
+        return containers == null ? 0 : containers.length;
+    }
+
+    /**
+     * Same as {@link #countCandidatePairs()}, but counts the pairs at most once per step,
+     * so that it can be called for each flight recorder event.
+     */
+    long getStepCandidatePairs() {
+        if (stepCandidatePairs < 0) {
+            stepCandidatePairs = countCandidatePairs();
+        }
+        return stepCandidatePairs;
+    }
+
+    /**
+     * Counts how many pairs of particles were checked in the last step,
+     * i.e. the number of neighbors in the neighbor lists,
+     * or else the number of particles in the neighborhood of each particle's container.
+     * This doesn't account for skipped particles (see {@link #sleepSteps})
+     * or for {@link ForceEngine#PAIRWISE} checking each pair only once.
+     * <p>
+     * This takes some time, as it visits the neighborhood of each container,
+     * so only call it when needed, and only from the thread that calls {@link #update()}.
+     */
+    public long countCandidatePairs() {
+        if (containers == null) return 0;
+        if (activeForceEngine == ForceEngine.NEIGHBOR_LIST && neighborStart.length == particles.size() + 1) {
+            return neighborStart[particles.size()];
+        }
+        long pairs = 0;
+        for (int cy = 0; cy < ny; cy++) {
+            for (int cx = 0; cx < nx; cx++) {
+                int ci = containerRanks[cx + cy * nx];
+                int count = containers[ci] - (ci == 0 ? 0 : containers[ci - 1]);
+                if (count > 0) {
+                    pairs += count * countNeighborhoodParticles(cx, cy);
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the number of particles in the neighborhood of container <code>(cx, cy)</code>,
+     * including the container itself
+     */
+    private long countNeighborhoodParticles(int cx, int cy) {
+        long count = 0;
+        for (int[] containerNeighbor : containerNeighborhood) {
+            int ncx = cx + containerNeighbor[0];
+            int ncy = cy + containerNeighbor[1];
+            if (settings.wrap) {
+                ncx = wrapContainerX(ncx);
+                ncy = wrapContainerY(ncy);
+            } else if (ncx < 0 || ncx >= nx || ncy < 0 || ncy >= ny) {
+                continue;
+            }
+            int nci = containerRanks[ncx + ncy * nx];
+            count += containers[nci] - (nci == 0 ? 0 : containers[nci - 1]);
+        }
+        return count;
     }
 
     public void generateMatrix() {
@@ -189,36 +921,31 @@ public class Physics {
      */
     public void setParticleCount(int n) {
         if (particles == null) {
-            particles = new Particle[n];
+            particles = new ParticleStore(n);
             for (int i = 0; i < n; i++) {
-                particles[i] = generateParticle();
+                generateParticle(i);
             }
-        } else if (n != particles.length) {
+        } else if (n != particles.size()) {
             // strategy: if the array size changed, try to keep most of the particles
 
-            Particle[] newParticles = new Particle[n];
+            int prevSize = particles.size();
 
-            if (n < particles.length) {  // array becomes shorter
+            if (n < prevSize) {  // array becomes shorter
 
                 // randomly shuffle particles first
                 // (otherwise, the container layout becomes visible)
                 shuffleParticles();
 
-                // copy previous array as far as possible
-                for (int i = 0; i < n; i++) {
-                    newParticles[i] = particles[i];
-                }
+                // keep previous particles as far as possible
+                particles.resize(n);
 
             } else {  // array becomes longer
-                // copy old array and add particles to the end
-                for (int i = 0; i < particles.length; i++) {
-                    newParticles[i] = particles[i];
-                }
-                for (int i = particles.length; i < n; i++) {
-                    newParticles[i] = generateParticle();
+                // keep old particles and add particles to the end
+                particles.resize(n);
+                for (int i = prevSize; i < n; i++) {
+                    generateParticle(i);
                 }
             }
-            particles = newParticles;
         }
     }
 
@@ -264,11 +991,13 @@ public class Physics {
      * are assigned a new type using the current {@link #typeSetter type setter}.
      */
     public void ensureTypes() {
-        for (Particle p : particles) {
-            if (p.type >= settings.matrix.size()) {
-                setType(p);
+        int n = particles.size();
+        for (int i = 0; i < n; i++) {
+            if (particles.type[i] >= settings.matrix.size()) {
+                setType(i);
             }
         }
+        wakeParticles();
     }
 
     /**
@@ -276,138 +1005,446 @@ public class Physics {
      * (i.e. if particles are treated differently depending on their position in the array).
      */
     private void shuffleParticles() {
-        Collections.shuffle(Arrays.asList(particles));
+        particles.shuffle();
     }
 
     /**
-     * Creates a new particle and
+     * Initializes particle <code>i</code> by
      * <ol>
-     *     <li>sets its type using the default type setter</li>
-     *     <li>sets its position using the active position setter</li>
+     *     <li>setting its type using the default type setter</li>
+     *     <li>setting its position using the active position setter</li>
      * </ol>
-     * (in that order) and returns it.
+     * (in that order).
      */
-    private Particle generateParticle() {
-        Particle p = new Particle();
-        setType(p);
-        setPosition(p);
-        return p;
+    private void generateParticle(int i) {
+        setType(i);
+        setPosition(i);
     }
 
-    protected final void setPosition(Particle p) {
-        positionSetter.set(p.position, p.type, settings.matrix.size());
-        ensurePosition(p.position);
-        p.velocity.x = 0;
-        p.velocity.y = 0;
-        p.velocity.z = 0;
+    protected final void setPosition(int i) {
+        Vector3d position = particles.getPosition(i, new Vector3d());
+        positionSetter.set(position, particles.type[i], settings.matrix.size());
+        ensurePosition(position);
+        particles.setPosition(i, position);
+        particles.vx[i] = 0;
+        particles.vy[i] = 0;
     }
 
-    protected final void setType(Particle p) {
-        p.type = typeSetter.getType(new Vector3d(p.position), new Vector3d(p.velocity), p.type, settings.matrix.size());
+    protected final void setType(int i) {
+        particles.type[i] = typeSetter.getType(
+                particles.getPosition(i, new Vector3d()),
+                particles.getVelocity(i, new Vector3d()),
+                particles.type[i],
+                settings.matrix.size());
     }
 
-    private void makeContainers() {
+    void makeContainers() {
 
-        // ensure that nx and ny are still OK
-        containerSize = settings.rmax;//todo: in the future, containerSize should be independent of rmax
-        calcNxNy();//todo: only change if containerSize (or range) changed
-        //todo: (future) containerNeighborhood depends on rmax and containerSize.
-        // if (rmax changed or containerSize changed) {
-        //     makeContainerNeighborhood();
-        // }
+        updateContainerLayout();
+
+        final int nContainers = nx * ny;
+        final int n = particles.size();
+        final int batches = LoadDistributor.batchCount(n, preferredNumberOfThreads);
+        final int ranges = LoadDistributor.batchCount(nContainers, preferredNumberOfThreads);
 
         // init arrays
-        if (containers == null || containers.length != nx * ny) {
-            containers = new int[nx * ny];
+        if (containers == null || containers.length != nContainers) {
+            containers = new int[nContainers];
         }
-        Arrays.fill(containers, 0);
-        if (particlesBuffer == null || particlesBuffer.length != particles.length) {
-            particlesBuffer = new Particle[particles.length];
+        if (containerCounts.length < batches * nContainers) {
+            containerCounts = new int[batches * nContainers];
         }
-
-        // calculate container capacity
-        for (Particle p : particles) {
-            int ci = getContainerIndex(p.position);
-            containers[ci]++;
+        if (particleContainers.length < n) {
+            particleContainers = new int[particles.capacity()];
         }
+        if (rangeOffsets.length < ranges) {
+            rangeOffsets = new int[ranges];
+        }
+        particlesBuffer.resize(n);
+
+        // local copies for the lambdas
+        final ParticleStore particles = this.particles;
+        final ParticleStore particlesBuffer = this.particlesBuffer;
+        final int[] containers = this.containers;
+        final int[] containerCounts = this.containerCounts;  // one row of nContainers entries per batch
+        final int[] particleContainers = this.particleContainers;
+        final int[] rangeOffsets = this.rangeOffsets;
+
+        // count how many particles of each batch go into each container
+        loadDistributor.distributeLoadEvenly(n, preferredNumberOfThreads, (batch, start, stop) -> {
+            final int row = batch * nContainers;
+            Arrays.fill(containerCounts, row, row + nContainers, 0);
+            for (int i = start; i < stop; i++) {
+                int ci = getContainerIndex(particles.x[i], particles.y[i]);
+                particleContainers[i] = ci;  // remember for the scatter below
+                containerCounts[row + ci]++;
+            }
+        });
 
-        // capacity -> index
+        // count -> index (prefix sum over all containers, and over all batches within each container):
+        // first, sum up the counts of each range of containers
+        loadDistributor.distributeLoadEvenly(nContainers, preferredNumberOfThreads, (range, start, stop) -> {
+            int sum = 0;
+            for (int ci = start; ci < stop; ci++) {
+                for (int b = 0; b < batches; b++) {
+                    sum += containerCounts[b * nContainers + ci];
+                }
+            }
+            rangeOffsets[range] = sum;
+        });
+        // then, find the offset of each range
         int offset = 0;
-        for (int i = 0; i < containers.length; i++) {
-            int cap = containers[i];
-            containers[i] = offset;
-            offset += cap;
+        for (int range = 0; range < ranges; range++) {
+            int sum = rangeOffsets[range];
+            rangeOffsets[range] = offset;
+            offset += sum;
         }
+        // and finally, replace the counts with the index where each batch starts writing
+        loadDistributor.distributeLoadEvenly(nContainers, preferredNumberOfThreads, (range, start, stop) -> {
+            int index = rangeOffsets[range];
+            for (int ci = start; ci < stop; ci++) {
+                for (int b = 0; b < batches; b++) {
+                    int k = b * nContainers + ci;
+                    int count = containerCounts[k];
+                    containerCounts[k] = index;
+                    index += count;
+                }
+                containers[ci] = index;  // end of container ci
+            }
+        });
 
         // fill particles into containers
-        for (Particle p : particles) {
-            int ci = getContainerIndex(p.position);
-            int i = containers[ci];
-            particlesBuffer[i] = p;
-            containers[ci]++;  // for next access
-        }
+        // (in the same order as a sequential sort, as each batch writes behind the previous batches)
+        loadDistributor.distributeLoadEvenly(n, preferredNumberOfThreads, (batch, start, stop) -> {
+            final int row = batch * nContainers;
+            for (int i = start; i < stop; i++) {
+                particlesBuffer.set(containerCounts[row + particleContainers[i]]++, particles, i);
+            }
+        });
 
         // swap buffers
-        Particle[] h = particles;
-        particles = particlesBuffer;
-        particlesBuffer = h;
+        this.particles = particlesBuffer;
+        this.particlesBuffer = particles;
     }
 
     /**
      * Will fail if position is outside range!
      *
-     * @param position must be in position range
-     * @return index of the container containing <code>position</code>
+     * @param x must be in position range
+     * @param y must be in position range
+     * @return index of the container containing the position <code>(x, y)</code>
      */
-    private int getContainerIndex(Vector3d position) {
-        int cx = (int) (position.x / containerSize);
-        int cy = (int) (position.y / containerSize);
+    private int getContainerIndex(double x, double y) {
+        return containerRanks[getContainerX(x) + getContainerY(y) * nx];
+    }
 
-        // for solid borders
-        if (cx == nx) {
-            cx = nx - 1;
-        }
-        if (cy == ny) {
-            cy = ny - 1;
-        }
+    private int getContainerX(double x) {
+        // the last container also holds the rest of the space (and x == 1 for solid borders)
+        return Math.min((int) (x / containerSize), nx - 1);
+    }
 
-        return cx + cy * nx;
+    private int getContainerY(double y) {
+        return Math.min((int) (y / containerSize), ny - 1);
     }
 
     private int wrapContainerX(int cx) {
-        if (cx < 0) {
-            return cx + nx;
-        } else if (cx >= nx) {
-            return cx - nx;
-        } else {
-            return cx;
+        if (cx < 0 || cx >= nx) {
+            return Math.floorMod(cx, nx);  // may wrap multiple times if there are only few containers
         }
+        return cx;
     }
 
     private int wrapContainerY(int cy) {
-        if (cy < 0) {
-            return cy + ny;
-        } else if (cy >= ny) {
-            return cy - ny;
-        } else {
-            return cy;
+        if (cy < 0 || cy >= ny) {
+            return Math.floorMod(cy, ny);
         }
+        return cy;
     }
 
     private void updateVelocity(int i) {
-        Particle p = particles[i];
+        final ParticleStore particles = this.particles;  // avoid repeated field access in the loop
+        final double[] x = particles.x;
+        final double[] y = particles.y;
+        final int[] type = particles.type;
+
+        final double px = x[i];
+        final double py = y[i];
+        final int pType = type[i];
+        final double rmax = settings.rmax;
+        final double rmaxSquared = rmax * rmax;
+        final boolean wrap = settings.wrap;
 
         // apply friction before adding new velocity
         double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);  // is normalized to 60 fps
-        p.velocity.mul(frictionFactor);
+        double vx = particles.vx[i] * frictionFactor;
+        double vy = particles.vy[i] * frictionFactor;
+
+        final double velocityScale = rmax * settings.force * settings.dt;
+        final double rmaxInverse = 1 / rmax;
+        final Matrix matrix = settings.matrix;
+        final ScalarAccelerator accelerator = scalarAccelerator;
+
+        final double[] acceleration = accelerationAccumulator.get();
+        acceleration[0] = 0;
+        acceleration[1] = 0;
+
+        // lookup table, if available
+        final TabulatedAccelerator tabulated = tabulatedAccelerator;
+        final int tableOffset = tabulated != null ? tabulated.offset(pType, 0) : 0;
+        final int tableStride = tabulated != null ? tabulated.resolution + 1 : 0;
+        double tabulatedAx = 0;
+        double tabulatedAy = 0;
+
+        final boolean vectorized = activeForceEngine == ForceEngine.VECTORIZED;
+        final int[] vectorIndices = vectorized ? this.vectorIndices.get() : null;
 
-        int cx0 = (int) Math.floor(p.position.x / containerSize);
-        int cy0 = (int) Math.floor(p.position.y / containerSize);
+        // pair census, if enabled
+        final PairCensus.Counter census = censusCounters != null ? censusCounters[LoadDistributor.currentThreadIndex()] : null;
+        final double coreSquared = pairCensusBeta * pairCensusBeta * rmaxSquared;
+        long candidates = 0;
+
+        int cx0 = getContainerX(px);
+        int cy0 = getContainerY(py);
 
         for (int[] containerNeighbor : containerNeighborhood) {
-            int cx = wrapContainerX(cx0 + containerNeighbor[0]);
-            int cy = wrapContainerY(cy0 + containerNeighbor[1]);
-            if (settings.wrap) {
+            int cx = cx0 + containerNeighbor[0];
+            int cy = cy0 + containerNeighbor[1];
+            if (wrap) {
+                cx = wrapContainerX(cx);
+                cy = wrapContainerY(cy);
+            } else {
+                if (cx < 0 || cx >= nx || cy < 0 || cy >= ny) {
+                    continue;
+                }
+            }
+            int ci = containerRanks[cx + cy * nx];
+
+            int start = ci == 0 ? 0 : containers[ci - 1];
+            int stop = containers[ci];
+            candidates += stop - start;
+
+            if (vectorized) {
+                if (tabulated != null) {
+                    VectorizedKernel.accumulateTabulated(px, py, x, y, type, start, stop, wrap, rmaxSquared,
+                            tabulated, tableOffset, vectorIndices, acceleration);
+                } else {
+                    VectorizedKernel.accumulateDefault(px, py, x, y, type, start, stop, wrap, rmax,
+                            vectorizedMatrix, pType * matrix.size(), vectorIndices, acceleration);
+                }
+                continue;
+            }
+
+            for (int j = start; j < stop; j++) {
+                if (i == j) continue;
+
+                double dx = x[j] - px;
+                double dy = y[j] - py;
+                if (wrap) {
+                    // wrapping the connection gives us the shortest possible distance
+                    dx = Range.wrapConnection(dx);
+                    dy = Range.wrapConnection(dy);
+                }
+
+                double distanceSquared = dx * dx + dy * dy;
+                // only check particles that are closer than or at rmax
+                if (distanceSquared != 0 && distanceSquared <= rmaxSquared) {
+                    if (census != null) census.countAccepted(pType, type[j], distanceSquared < coreSquared);
+
+                    if (tabulated != null) {
+                        double factor = tabulated.lookup(tableOffset + type[j] * tableStride, distanceSquared);
+                        tabulatedAx += factor * dx;
+                        tabulatedAy += factor * dy;
+                    } else {
+                        double distance = Math.sqrt(distanceSquared) * rmaxInverse;
+                        accelerator.accelerate(matrix.get(pType, type[j]),
+                                dx * rmaxInverse, dy * rmaxInverse, distance, acceleration);
+                    }
+                }
+            }
+        }
+
+        if (census != null) census.countCandidates(candidates - 1);  // without the particle itself
+
+        // apply force as acceleration
+        particles.vx[i] = vx + (acceleration[0] + tabulatedAx) * velocityScale;
+        particles.vy[i] = vy + (acceleration[1] + tabulatedAy) * velocityScale;
+    }
+
+    /**
+     * Decides which containers are skipped in this step, see {@link #sleepSteps}.
+     * Must be called after the particles were sorted into containers.
+     */
+    private void updateSleepingContainers() {
+        if (!sleepStateValid || sleepSettingsChanged()) {
+            // the particles may not be at rest anymore under the new conditions
+            wakeParticles();
+            sleepSettings = settings.deepCopy();
+            sleepAccelerator = accelerator;
+            sleepParticleCount = particles.size();
+            sleepStateValid = true;
+        }
+
+        final int nContainers = nx * ny;
+        if (containerAsleep.length < nContainers) {
+            containerAsleep = new boolean[nContainers];
+            containerSkipped = new boolean[nContainers];
+        }
+        final int[] restingSteps = particles.restingSteps;
+        final int sleepSteps = this.sleepSteps;
+        loadDistributor.distributeLoadEvenly(nContainers, preferredNumberOfThreads, (batch, start, stop) -> {
+            for (int ci = start; ci < stop; ci++) {
+                boolean asleep = true;
+                for (int j = ci == 0 ? 0 : containers[ci - 1]; j < containers[ci]; j++) {
+                    if (restingSteps[j] < sleepSteps) {
+                        asleep = false;
+                        break;
+                    }
+                }
+                containerAsleep[ci] = asleep;
+            }
+        });
+        final boolean wrap = settings.wrap;
+        loadDistributor.distributeLoadEvenly(nContainers, preferredNumberOfThreads, (batch, start, stop) -> {
+            for (int c = start; c < stop; c++) {
+                int cx0 = c % nx;
+                int cy0 = c / nx;
+                boolean skipped = true;
+                for (int[] containerNeighbor : containerNeighborhood) {
+                    int cx = cx0 + containerNeighbor[0];
+                    int cy = cy0 + containerNeighbor[1];
+                    if (wrap) {
+                        cx = wrapContainerX(cx);
+                        cy = wrapContainerY(cy);
+                    } else if (cx < 0 || cx >= nx || cy < 0 || cy >= ny) {
+                        continue;
+                    }
+                    if (!containerAsleep[containerRanks[cx + cy * nx]]) {
+                        skipped = false;
+                        break;
+                    }
+                }
+                containerSkipped[containerRanks[c]] = skipped;
+            }
+        });
+
+        int count = 0;
+        for (int ci = 0; ci < nContainers; ci++) {
+            if (containerSkipped[ci]) {
+                count += containers[ci] - (ci == 0 ? 0 : containers[ci - 1]);
+            }
+        }
+        sleepingCount = count;
+    }
+
+    /**
+     * Changes in these settings can change the forces on the particles everywhere.
+     * The time step only matters if it becomes 0, as then every particle would be at rest.
+     */
+    private boolean sleepSettingsChanged() {
+        final PhysicsSettings s = sleepSettings;
+        return s.wrap != settings.wrap
+                || s.rmax != settings.rmax
+                || s.friction != settings.friction
+                || s.force != settings.force
+                || (s.dt == 0) != (settings.dt == 0)
+                || !s.matrix.equals(settings.matrix)
+                || sleepAccelerator != accelerator
+                || sleepParticleCount != particles.size();
+    }
+
+    private void updateVelocityUnlessAsleep(int i, IntConsumer velocityUpdate) {
+        final ParticleStore particles = this.particles;
+        if (containerSkipped[getContainerIndex(particles.x[i], particles.y[i])]) {
+            particles.vx[i] = 0;
+            particles.vy[i] = 0;
+            return;
+        }
+
+        velocityUpdate.accept(i);
+
+        final double vx = particles.vx[i];
+        final double vy = particles.vy[i];
+        final double restingSpeed = sleepVelocity * settings.rmax;
+        if (vx * vx + vy * vy < restingSpeed * restingSpeed) {
+            if (particles.restingSteps[i] < sleepSteps) particles.restingSteps[i]++;
+        } else {
+            particles.restingSteps[i] = 0;
+        }
+    }
+
+    /**
+     * Copies the positions into {@link #floatX} and {@link #floatY} for {@link ForceEngine#SINGLE_PRECISION}.
+     * This is done for each step, as the particles are moved and reordered in double precision.
+     */
+    private void makeFloatPositions() {
+        final ParticleStore particles = this.particles;
+        final int n = particles.size();
+        if (floatX.length < n) {
+            floatX = new float[n];
+            floatY = new float[n];
+        }
+        final double[] x = particles.x;
+        final double[] y = particles.y;
+        final float[] fx = floatX;
+        final float[] fy = floatY;
+        loadDistributor.distributeLoadEvenly(n, preferredNumberOfThreads, (batch, start, stop) -> {
+            for (int i = start; i < stop; i++) {
+                fx[i] = (float) x[i];
+                fy[i] = (float) y[i];
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #updateVelocity(int)}, but computes the connections in single precision
+     * (see {@link ForceEngine#SINGLE_PRECISION}).
+     * Requires {@link #makeFloatPositions()} to be called before.
+     */
+    private void updateVelocitySinglePrecision(int i) {
+        final ParticleStore particles = this.particles;
+        final float[] x = floatX;
+        final float[] y = floatY;
+        final int[] type = particles.type;
+
+        final float px = x[i];
+        final float py = y[i];
+        final int pType = type[i];
+        final double rmax = settings.rmax;
+        final float rmaxSquared = (float) (rmax * rmax);
+        final boolean wrap = settings.wrap;
+
+        double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);
+        double vx = particles.vx[i] * frictionFactor;
+        double vy = particles.vy[i] * frictionFactor;
+
+        final double velocityScale = rmax * settings.force * settings.dt;
+        final double rmaxInverse = 1 / rmax;
+        final Matrix matrix = settings.matrix;
+        final ScalarAccelerator accelerator = scalarAccelerator;
+
+        final double[] acceleration = accelerationAccumulator.get();
+        acceleration[0] = 0;
+        acceleration[1] = 0;
+
+        final TabulatedAccelerator tabulated = tabulatedAccelerator;
+        final int tableOffset = tabulated != null ? tabulated.offset(pType, 0) : 0;
+        final int tableStride = tabulated != null ? tabulated.resolution + 1 : 0;
+        // the sums stay in double precision, as they add up many small contributions
+        double tabulatedAx = 0;
+        double tabulatedAy = 0;
+
+        // pair census, if enabled
+        final PairCensus.Counter census = censusCounters != null ? censusCounters[LoadDistributor.currentThreadIndex()] : null;
+        final float coreSquared = (float) (pairCensusBeta * pairCensusBeta) * rmaxSquared;
+        long candidates = 0;
+
+        int cx0 = getContainerX(particles.x[i]);
+        int cy0 = getContainerY(particles.y[i]);
+
+        for (int[] containerNeighbor : containerNeighborhood) {
+            int cx = cx0 + containerNeighbor[0];
+            int cy = cy0 + containerNeighbor[1];
+            if (wrap) {
                 cx = wrapContainerX(cx);
                 cy = wrapContainerY(cy);
             } else {
@@ -415,38 +1452,556 @@ public class Physics {
                     continue;
                 }
             }
-            int ci = cx + cy * nx;
+            int ci = containerRanks[cx + cy * nx];
 
             int start = ci == 0 ? 0 : containers[ci - 1];
             int stop = containers[ci];
+            candidates += stop - start;
 
             for (int j = start; j < stop; j++) {
                 if (i == j) continue;
 
-                Particle q = particles[j];
+                float dx = x[j] - px;
+                float dy = y[j] - py;
+                if (wrap) {
+                    dx = Range.wrapConnection(dx);
+                    dy = Range.wrapConnection(dy);
+                }
+
+                float distanceSquared = dx * dx + dy * dy;
+                if (distanceSquared != 0 && distanceSquared <= rmaxSquared) {
+                    if (census != null) census.countAccepted(pType, type[j], distanceSquared < coreSquared);
+
+                    if (tabulated != null) {
+                        double factor = tabulated.lookup(tableOffset + type[j] * tableStride, distanceSquared);
+                        tabulatedAx += factor * dx;
+                        tabulatedAy += factor * dy;
+                    } else {
+                        double distance = Math.sqrt(distanceSquared) * rmaxInverse;
+                        accelerator.accelerate(matrix.get(pType, type[j]),
+                                dx * rmaxInverse, dy * rmaxInverse, distance, acceleration);
+                    }
+                }
+            }
+        }
+
+        if (census != null) census.countCandidates(candidates - 1);  // without the particle itself
+
+        particles.vx[i] = vx + (acceleration[0] + tabulatedAx) * velocityScale;
+        particles.vy[i] = vy + (acceleration[1] + tabulatedAy) * velocityScale;
+    }
+
+    /**
+     * Updates the velocities of all particles like {@link #updateVelocity(int)},
+     * but computes each pair of particles only once (see {@link ForceEngine#PAIRWISE}).
+     */
+    private void updateVelocitiesPairwise() {
+
+        // apply friction before adding new velocity
+        final double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);  // is normalized to 60 fps
+        forEachParticle(i -> {
+            particles.vx[i] *= frictionFactor;
+            particles.vy[i] *= frictionFactor;
+        });
+
+        // Processing a row of containers changes the particles in this row and the next <radius> rows.
+        // So every (radius + 1)-th row can be processed at the same time.
+        // The remaining rows at the end must be processed on their own,
+        // as they wrap around to the first rows.
+        final int period = layoutSubdivision + 1;
+        final int fullRows = ny - ny % period;
+        final int rowsPerPhase = fullRows / period;
+        if (loadBalancing == LoadBalancing.COST_BALANCED) {
+            // each row is a chunk of its own
+            ensureChunkCapacity(rowsPerPhase);
+            for (int k = 0; k <= rowsPerPhase; k++) {
+                chunkBounds[k] = k;
+            }
+        }
+        for (int phase = 0; phase < period; phase++) {
+            final int firstRow = phase;
+            LoadDistributor.RangeProcessor processRows = (batch, start, stop) -> {
+                for (int k = start; k < stop && updateThreadsShouldRun.get(); k++) {
+                    updateRowPairwise(firstRow + period * k);
+                }
+            };
+            if (loadBalancing == LoadBalancing.COST_BALANCED) {
+                loadDistributor.distributeChunks(chunkBounds, rowsPerPhase, preferredNumberOfThreads, processRows);
+            } else {
+                loadDistributor.distributeLoadEvenly(rowsPerPhase, preferredNumberOfThreads, processRows);
+            }
+        }
+        for (int cy = fullRows; cy < ny && updateThreadsShouldRun.get(); cy++) {
+            updateRowPairwise(cy);
+        }
+    }
+
+    private void updateRowPairwise(int cy) {
+        final boolean wrap = settings.wrap;
+        for (int cx = 0; cx < nx; cx++) {
+            int ci = containerRanks[cx + cy * nx];
+            int start = ci == 0 ? 0 : containers[ci - 1];
+            int stop = containers[ci];
+            if (start == stop) continue;
+
+            // the container itself
+            interactPairwise(start, stop, start, stop);
+
+            for (int[] containerNeighbor : forwardContainerNeighborhood) {
+                int ncx = cx + containerNeighbor[0];
+                int ncy = cy + containerNeighbor[1];
+                if (wrap) {
+                    ncx = wrapContainerX(ncx);
+                    ncy = wrapContainerY(ncy);
+                } else if (ncx < 0 || ncx >= nx || ncy >= ny) {
+                    continue;
+                }
+                int nci = containerRanks[ncx + ncy * nx];
+                interactPairwise(start, stop, nci == 0 ? 0 : containers[nci - 1], containers[nci]);
+            }
+        }
+    }
 
-                Vector3d relativePosition = connection(p.position, q.position);
+    /**
+     * Adds the forces between the particles <code>iStart ... iStop - 1</code>
+     * and the particles <code>jStart ... jStop - 1</code> to the velocities of both.
+     * If both ranges are the same, each pair within the range is only regarded once.
+     */
+    private void interactPairwise(int iStart, int iStop, int jStart, int jStop) {
+        final ParticleStore particles = this.particles;  // avoid repeated field access in the loop
+        final double[] x = particles.x;
+        final double[] y = particles.y;
+        final double[] vx = particles.vx;
+        final double[] vy = particles.vy;
+        final int[] type = particles.type;
+
+        final double rmax = settings.rmax;
+        final double rmaxSquared = rmax * rmax;
+        final double rmaxInverse = 1 / rmax;
+        final boolean wrap = settings.wrap;
+        final double velocityScale = rmax * settings.force * settings.dt;
+        final Matrix matrix = settings.matrix;
+        final ScalarAccelerator accelerator = scalarAccelerator;
+        final boolean sameCell = iStart == jStart;
+
+        final double[] acceleration = accelerationAccumulator.get();
+
+        // lookup table, if available
+        final TabulatedAccelerator tabulated = tabulatedAccelerator;
+
+        for (int i = iStart; i < iStop; i++) {
+            final double px = x[i];
+            final double py = y[i];
+            final int pType = type[i];
+            double ax = 0;
+            double ay = 0;
+
+            for (int j = sameCell ? i + 1 : jStart; j < jStop; j++) {
+
+                double dx = x[j] - px;
+                double dy = y[j] - py;
+                if (wrap) {
+                    // wrapping the connection gives us the shortest possible distance
+                    dx = Range.wrapConnection(dx);
+                    dy = Range.wrapConnection(dy);
+                }
 
-                double distanceSquared = relativePosition.lengthSquared();
+                double distanceSquared = dx * dx + dy * dy;
                 // only check particles that are closer than or at rmax
-                if (distanceSquared != 0 && distanceSquared <= settings.rmax * settings.rmax) {
+                if (distanceSquared == 0 || distanceSquared > rmaxSquared) continue;
+
+                final int qType = type[j];
+                if (tabulated != null) {
+                    double factorIJ = tabulated.lookup(tabulated.offset(pType, qType), distanceSquared);
+                    double factorJI = tabulated.lookup(tabulated.offset(qType, pType), distanceSquared);
+                    ax += factorIJ * dx;
+                    ay += factorIJ * dy;
+                    vx[j] -= factorJI * dx * velocityScale;
+                    vy[j] -= factorJI * dy * velocityScale;
+                } else {
+                    double distance = Math.sqrt(distanceSquared) * rmaxInverse;
+                    dx *= rmaxInverse;
+                    dy *= rmaxInverse;
+
+                    acceleration[0] = 0;
+                    acceleration[1] = 0;
+                    accelerator.accelerate(matrix.get(pType, qType), dx, dy, distance, acceleration);
+                    ax += acceleration[0];
+                    ay += acceleration[1];
+
+                    acceleration[0] = 0;
+                    acceleration[1] = 0;
+                    accelerator.accelerate(matrix.get(qType, pType), -dx, -dy, distance, acceleration);
+                    vx[j] += acceleration[0] * velocityScale;
+                    vy[j] += acceleration[1] * velocityScale;
+                }
+            }
+
+            vx[i] += ax * velocityScale;
+            vy[i] += ay * velocityScale;
+        }
+    }
+
+    private void ensureChunkCapacity(int chunks) {
+        if (chunkBounds.length < chunks + 1) {
+            chunkBounds = new int[chunks + 1];
+        }
+    }
 
-                    relativePosition.div(settings.rmax);
-                    Vector3d deltaV = accelerator.accelerate(settings.matrix.get(p.type, q.type), relativePosition);
-                    // apply force as acceleration
-                    p.velocity.add(deltaV.mul(settings.rmax * settings.force * settings.dt));
+    /**
+     * Splits the particles into chunks along the containers,
+     * such that each chunk needs roughly the same number of distance checks.
+     *
+     * @return the number of chunks in {@link #chunkBounds}
+     */
+    private int makeContainerChunks() {
+        final int nContainers = nx * ny;
+        final int n = particles.size();
+        if (containerCosts.length != nContainers) {
+            containerCosts = new long[nContainers];
+        }
+        final long[] containerCosts = this.containerCosts;
+        final int[] containers = this.containers;
+
+        // each particle is checked against all particles in the neighborhood of its container
+        loadDistributor.distributeLoadEvenly(ny, preferredNumberOfThreads, (batch, start, stop) -> {
+            for (int cy = start; cy < stop; cy++) {
+                for (int cx = 0; cx < nx; cx++) {
+                    int ci = containerRanks[cx + cy * nx];
+                    int count = containers[ci] - (ci == 0 ? 0 : containers[ci - 1]);
+                    if (count == 0) {
+                        containerCosts[ci] = 0;
+                        continue;
+                    }
+                    containerCosts[ci] = count * (countNeighborhoodParticles(cx, cy) + 1);
                 }
             }
+        });
+
+        long totalCost = 0;
+        for (int ci = 0; ci < nContainers; ci++) {
+            totalCost += containerCosts[ci];
+        }
+
+        // close a chunk at the end of each container where the next multiple of the target cost is reached
+        final int targetChunks = Math.max(1, preferredNumberOfThreads * Math.max(1, chunksPerThread));
+        ensureChunkCapacity(targetChunks);
+        int chunks = 0;
+        chunkBounds[0] = 0;
+        long cost = 0;
+        for (int ci = 0; ci < nContainers && chunks < targetChunks - 1; ci++) {
+            cost += containerCosts[ci];
+            if (cost * targetChunks >= totalCost * (chunks + 1) && containers[ci] > chunkBounds[chunks]) {
+                chunkBounds[++chunks] = containers[ci];
+            }
+        }
+        if (chunkBounds[chunks] < n) {
+            chunkBounds[++chunks] = n;
         }
+        return chunks;
     }
 
-    private void updatePosition(int i) {
-        Particle p = particles[i];
+    /**
+     * Splits the particles into chunks such that each chunk has roughly the same number of neighbors.
+     *
+     * @return the number of chunks in {@link #chunkBounds}
+     */
+    private int makeNeighborListChunks() {
+        final int n = particles.size();
+        final int[] neighborStart = this.neighborStart;
+
+        // the cost of particles 0 ... i - 1 is neighborStart[i] + i
+        final long totalCost = (long) neighborStart[n] + n;
+        final int targetChunks = Math.max(1, preferredNumberOfThreads * Math.max(1, chunksPerThread));
+        ensureChunkCapacity(targetChunks);
+        int chunks = 0;
+        chunkBounds[0] = 0;
+        for (int k = 1; k < targetChunks; k++) {
+            long target = totalCost * k / targetChunks;
+            // binary search for the first i with cost(i) >= target
+            int low = chunkBounds[chunks];
+            int high = n;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if ((long) neighborStart[mid] + mid < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low > chunkBounds[chunks] && low < n) {
+                chunkBounds[++chunks] = low;
+            }
+        }
+        if (chunkBounds[chunks] < n) {
+            chunkBounds[++chunks] = n;
+        }
+        return chunks;
+    }
+
+    private double getNeighborListRange() {
+        return settings.rmax * (1 + Math.max(0, neighborListSkin));
+    }
+
+    /**
+     * Rebuilds the neighbor lists if any particle could have come within rmax
+     * of a particle that is not in its list,
+     * i.e. if a particle moved by more than half the skin since the last build.
+     * Also rebuilds if the particles, rmax, the skin or wrap changed.
+     */
+    private void updateNeighborList() {
+        final double range = getNeighborListRange();
+        final int n = particles.size();
+        if (particles != neighborListParticles
+                || n + 1 != neighborStart.length
+                || range != neighborListRange
+                || settings.wrap != neighborListWrap
+                || getMaxDisplacement() > (range - settings.rmax) / 2) {
+            makeContainers();
+            buildNeighborList();
+        }
+    }
+
+    /**
+     * @return how far any particle moved since the neighbor lists were built
+     */
+    private double getMaxDisplacement() {
+        final ParticleStore particles = this.particles;
+        final double[] x0 = neighborListX;
+        final double[] y0 = neighborListY;
+        final boolean wrap = settings.wrap;
+        final int n = particles.size();
+        final int batches = LoadDistributor.batchCount(n, preferredNumberOfThreads);
+        if (batchMaxDisplacements.length < batches) {
+            batchMaxDisplacements = new double[batches];
+        }
+        final double[] batchMaxDisplacements = this.batchMaxDisplacements;
+
+        loadDistributor.distributeLoadEvenly(n, preferredNumberOfThreads, (batch, start, stop) -> {
+            double maxSquared = 0;
+            for (int i = start; i < stop; i++) {
+                double dx = particles.x[i] - x0[i];
+                double dy = particles.y[i] - y0[i];
+                if (wrap) {
+                    dx = Range.wrapConnection(dx);
+                    dy = Range.wrapConnection(dy);
+                }
+                maxSquared = Math.max(maxSquared, dx * dx + dy * dy);
+            }
+            batchMaxDisplacements[batch] = maxSquared;
+        });
+
+        double maxSquared = 0;
+        for (int batch = 0; batch < batches; batch++) {
+            maxSquared = Math.max(maxSquared, batchMaxDisplacements[batch]);
+        }
+        return Math.sqrt(maxSquared);
+    }
+
+    /**
+     * Must be called right after {@link #makeContainers()}.
+     */
+    private void buildNeighborList() {
+        final ParticleStore particles = this.particles;
+        final int n = particles.size();
+        final double range = getNeighborListRange();
+        final int batches = LoadDistributor.batchCount(n, preferredNumberOfThreads);
+
+        if (neighborStart.length != n + 1) {
+            neighborStart = new int[n + 1];
+        }
+        if (batchNeighbors.length < batches) {
+            batchNeighbors = Arrays.copyOf(batchNeighbors, batches);
+        }
+        final int[] neighborStart = this.neighborStart;
+        final int[][] batchNeighbors = this.batchNeighbors;
+        final int[] batchSizes = new int[batches];
+
+        // each batch collects the neighbors of its particles in its own buffer
+        loadDistributor.distributeLoadEvenly(n, preferredNumberOfThreads, (batch, start, stop) -> {
+            int[] buffer = batchNeighbors[batch] != null ? batchNeighbors[batch] : new int[1024];
+            int size = 0;
+            for (int i = start; i < stop; i++) {
+                int count;
+                while ((count = collectNeighbors(i, range, buffer, size)) < 0) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                size += count;
+                neighborStart[i + 1] = count;
+            }
+            batchNeighbors[batch] = buffer;
+            batchSizes[batch] = size;
+        });
+
+        // count -> index
+        neighborStart[0] = 0;
+        for (int i = 0; i < n; i++) {
+            neighborStart[i + 1] += neighborStart[i];
+        }
+
+        // concatenate the buffers
+        if (neighbors.length < neighborStart[n]) {
+            // leave some room for growth, so that the array isn't re-allocated with each build
+            neighbors = new int[neighborStart[n] + neighborStart[n] / 4];
+        }
+        int offset = 0;
+        for (int batch = 0; batch < batches; batch++) {
+            System.arraycopy(batchNeighbors[batch], 0, neighbors, offset, batchSizes[batch]);
+            offset += batchSizes[batch];
+        }
+
+        // remember the state
+        if (neighborListX.length < n) {
+            neighborListX = new double[particles.capacity()];
+            neighborListY = new double[particles.capacity()];
+        }
+        System.arraycopy(particles.x, 0, neighborListX, 0, n);
+        System.arraycopy(particles.y, 0, neighborListY, 0, n);
+        neighborListParticles = particles;
+        neighborListRange = range;
+        neighborListWrap = settings.wrap;
+    }
+
+    /**
+     * Finds all particles within <code>range</code> of particle <code>i</code>, using the containers.
+     *
+     * @param dest   the indices of the neighbors are written into this array
+     * @param offset where to start writing into <code>dest</code>
+     * @return the number of neighbors, or -1 if they don't fit into <code>dest</code>
+     */
+    private int collectNeighbors(int i, double range, int[] dest, int offset) {
+        final double[] x = particles.x;
+        final double[] y = particles.y;
+        final double px = x[i];
+        final double py = y[i];
+        final double rangeSquared = range * range;
+        final boolean wrap = settings.wrap;
+
+        int count = 0;
+
+        int cx0 = getContainerX(px);
+        int cy0 = getContainerY(py);
+
+        for (int[] containerNeighbor : containerNeighborhood) {
+            int cx = cx0 + containerNeighbor[0];
+            int cy = cy0 + containerNeighbor[1];
+            if (wrap) {
+                cx = wrapContainerX(cx);
+                cy = wrapContainerY(cy);
+            } else {
+                if (cx < 0 || cx >= nx || cy < 0 || cy >= ny) {
+                    continue;
+                }
+            }
+            int ci = containerRanks[cx + cy * nx];
+
+            int start = ci == 0 ? 0 : containers[ci - 1];
+            int stop = containers[ci];
+
+            for (int j = start; j < stop; j++) {
+                if (i == j) continue;
+
+                double dx = x[j] - px;
+                double dy = y[j] - py;
+                if (wrap) {
+                    dx = Range.wrapConnection(dx);
+                    dy = Range.wrapConnection(dy);
+                }
+
+                if (dx * dx + dy * dy <= rangeSquared) {
+                    if (offset + count == dest.length) return -1;
+                    dest[offset + count] = j;
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Same as {@link #updateVelocity(int)}, but only regards the particles
+     * in the neighbor list of particle <code>i</code>.
+     */
+    private void updateVelocityFromNeighborList(int i) {
+        final ParticleStore particles = this.particles;  // avoid repeated field access in the loop
+        final double[] x = particles.x;
+        final double[] y = particles.y;
+        final int[] type = particles.type;
+        final int[] neighbors = this.neighbors;
+
+        final double px = x[i];
+        final double py = y[i];
+        final int pType = type[i];
+        final double rmax = settings.rmax;
+        final double rmaxSquared = rmax * rmax;
+        final boolean wrap = settings.wrap;
+
+        // apply friction before adding new velocity
+        double frictionFactor = Math.pow(settings.friction, 60 * settings.dt);  // is normalized to 60 fps
+        double vx = particles.vx[i] * frictionFactor;
+        double vy = particles.vy[i] * frictionFactor;
+
+        final double velocityScale = rmax * settings.force * settings.dt;
+        final double rmaxInverse = 1 / rmax;
+        final Matrix matrix = settings.matrix;
+        final ScalarAccelerator accelerator = scalarAccelerator;
+
+        final double[] acceleration = accelerationAccumulator.get();
+        acceleration[0] = 0;
+        acceleration[1] = 0;
+
+        // lookup table, if available
+        final TabulatedAccelerator tabulated = tabulatedAccelerator;
+        final int tableOffset = tabulated != null ? tabulated.offset(pType, 0) : 0;
+        final int tableStride = tabulated != null ? tabulated.resolution + 1 : 0;
+
+        // pair census, if enabled
+        final PairCensus.Counter census = censusCounters != null ? censusCounters[LoadDistributor.currentThreadIndex()] : null;
+        final double coreSquared = pairCensusBeta * pairCensusBeta * rmaxSquared;
+
+        final int stop = neighborStart[i + 1];
+        for (int k = neighborStart[i]; k < stop; k++) {
+            int j = neighbors[k];
+
+            double dx = x[j] - px;
+            double dy = y[j] - py;
+            if (wrap) {
+                // wrapping the connection gives us the shortest possible distance
+                dx = Range.wrapConnection(dx);
+                dy = Range.wrapConnection(dy);
+            }
+
+            double distanceSquared = dx * dx + dy * dy;
+            // only check particles that are closer than or at rmax
+            if (distanceSquared == 0 || distanceSquared > rmaxSquared) continue;
+
+            if (census != null) census.countAccepted(pType, type[j], distanceSquared < coreSquared);
 
+            if (tabulated != null) {
+                double factor = tabulated.lookup(tableOffset + type[j] * tableStride, distanceSquared);
+                acceleration[0] += factor * dx;
+                acceleration[1] += factor * dy;
+            } else {
+                double distance = Math.sqrt(distanceSquared) * rmaxInverse;
+                accelerator.accelerate(matrix.get(pType, type[j]),
+                        dx * rmaxInverse, dy * rmaxInverse, distance, acceleration);
+            }
+        }
+
+        if (census != null) census.countCandidates(stop - neighborStart[i]);
+
+        // apply force as acceleration
+        particles.vx[i] = vx + acceleration[0] * velocityScale;
+        particles.vy[i] = vy + acceleration[1] * velocityScale;
+    }
+
+    private void updatePosition(int i) {
         // pos += vel * dt
-        p.velocity.mulAdd(settings.dt, p.position, p.position);
+        particles.x[i] += particles.vx[i] * settings.dt;
+        particles.y[i] += particles.vy[i] * settings.dt;
 
-        ensurePosition(p.position);
+        ensurePosition(i);
     }
 
     /**
@@ -504,9 +2059,27 @@ public class Physics {
         }
     }
 
+    /**
+     * Same as {@link #ensurePosition(Vector3d)}, but for the position of particle <code>i</code>
+     * in {@link #particles}.
+     */
+    public void ensurePosition(int i) {
+        if (settings.wrap) {
+            particles.x[i] = Range.wrap(particles.x[i]);
+            particles.y[i] = Range.wrap(particles.y[i]);
+        } else {
+            particles.x[i] = Range.clamp(particles.x[i]);
+            particles.y[i] = Range.clamp(particles.y[i]);
+        }
+    }
+
     // HANDY OPERATIONS:
 
     public void setTypes() {
-        Arrays.stream(particles).forEach(p -> setType(p));
+        int n = particles.size();
+        for (int i = 0; i < n; i++) {
+            setType(i);
+        }
+        wakeParticles();
     }
 }
\ No newline at end of file
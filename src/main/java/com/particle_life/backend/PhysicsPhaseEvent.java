@@ -0,0 +1,14 @@
+package com.particle_life.backend;
+
+import jdk.jfr.*;
+
+@Name("com.particle_life.PhysicsPhase")
+@Label("Physics Phase")
+@Category({"Particle Life", "Physics"})
+@Description("One phase of Physics.update()")
+class PhysicsPhaseEvent extends SimulationEvent {
+
+    @Label("Phase")
+    @Description("See UpdatePhase")
+    String phase;
+}
@@ -0,0 +1,58 @@
+package com.particle_life.backend;
+
+import org.joml.Vector3d;
+
+/**
+ * Allocation-free variant of {@link Accelerator}.
+ * <p>
+ * Instead of receiving and returning vectors, implementations get the connection
+ * to the neighbor as scalar components and add the resulting acceleration
+ * to an accumulator that is owned by the caller.
+ * This way, no objects need to be created for each pair of particles.
+ * <p>
+ * {@link Physics} uses this interface directly if its accelerator implements it.
+ * Other accelerators are wrapped with {@link #of(Accelerator)}.
+ */
+public interface ScalarAccelerator extends Accelerator {
+
+    /**
+     * Implementations must <b>add</b> the acceleration to the values in <code>acceleration</code>
+     * instead of overwriting them, as the caller sums up the contributions of all neighbors in there.
+     *
+     * @param a            The entry of the matrix at index (i, j), where i is the type of the regarded particle and j the type of the other particle.
+     * @param dx           x-component of the neighbor's position relative to the particle's own position, divided by rmax.
+     * @param dy           y-component of the neighbor's position relative to the particle's own position, divided by rmax.
+     * @param distance     Length of (dx, dy), i.e. a value in (0, 1].
+     * @param acceleration Accumulator with (at least) two entries for the x- and y-component.
+     *                     The acceleration is interpreted as relative to rmax, just as in {@link Accelerator#accelerate}.
+     */
+    void accelerate(double a, double dx, double dy, double distance, double[] acceleration);
+
+    /**
+     * Implements the vector based interface using
+     * {@link #accelerate(double, double, double, double, double[])}.
+     */
+    @Override
+    default Vector3d accelerate(double a, Vector3d pos) {
+        double[] acceleration = new double[2];
+        accelerate(a, pos.x, pos.y, Math.sqrt(pos.x * pos.x + pos.y * pos.y), acceleration);
+        return pos.set(acceleration[0], acceleration[1], 0);
+    }
+
+    /**
+     * Returns the given accelerator if it already is a {@link ScalarAccelerator},
+     * otherwise wraps it into an adapter.
+     * Note that the adapter still allocates a vector for each call,
+     * as this is required by the {@link Accelerator} contract.
+     */
+    static ScalarAccelerator of(Accelerator accelerator) {
+        if (accelerator instanceof ScalarAccelerator scalarAccelerator) {
+            return scalarAccelerator;
+        }
+        return (a, dx, dy, distance, acceleration) -> {
+            Vector3d deltaV = accelerator.accelerate(a, new Vector3d(dx, dy, 0));
+            acceleration[0] += deltaV.x;
+            acceleration[1] += deltaV.y;
+        };
+    }
+}
@@ -0,0 +1,45 @@
+package com.particle_life.backend;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Base class for the Java Flight Recorder events of the simulation,
+ * with fields that describe how much work there was to do.
+ * <p>
+ * Record e.g. with <code>java -XX:StartFlightRecording=filename=recording.jfr ...</code>
+ * and open the file in JDK Mission Control, where the events are listed under "Particle Life".
+ * Unless a recording is running, the events cost next to nothing.
+ */
+@Category("Particle Life")
+public abstract class SimulationEvent extends Event {
+
+    @Label("Particle Count")
+    public int particleCount;
+
+    @Label("Thread Count")
+    public int threadCount;
+
+    @Label("Pairs Evaluated")
+    @Description("Number of particle pairs that were checked in the step, see Physics.countCandidatePairs()")
+    public long pairsEvaluated;
+
+    @Label("Cell Count")
+    @Description("Number of containers that the particles are sorted into")
+    public int cellCount;
+
+    /**
+     * Sets all fields from the given physics.
+     * Call this from the thread that calls {@link Physics#update()},
+     * and only if the event will be committed, as counting the pairs takes some time
+     * (but only once per step, no matter how many events are set).
+     */
+    public void set(Physics physics) {
+        particleCount = physics.particles.size();
+        threadCount = physics.preferredNumberOfThreads;
+        pairsEvaluated = physics.getStepCandidatePairs();
+        cellCount = physics.getContainerCount();
+    }
+}
@@ -0,0 +1,81 @@
+package com.particle_life.backend;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the last couple of durations of some recurring task,
+ * e.g. one phase of {@link Physics#update()}, to compute percentiles over them.
+ * <p>
+ * This is not thread-safe.
+ * To read the durations from another thread, copy them with {@link #set(TimeHistory)} at a safe point.
+ */
+public class TimeHistory {
+
+    private final long[] nanos;
+    /**
+     * Where the next duration will be stored.
+     */
+    private int next = 0;
+    private int count = 0;
+
+    /**
+     * @param n how many durations to remember
+     */
+    public TimeHistory(int n) {
+        nanos = new long[n];
+    }
+
+    public void add(long durationNanos) {
+        nanos[next] = durationNanos;
+        next = (next + 1) % nanos.length;
+        if (count < nanos.length) count++;
+    }
+
+    /**
+     * Replaces the durations of this history with the ones of <code>other</code>,
+     * which must remember the same number of durations.
+     */
+    public void set(TimeHistory other) {
+        System.arraycopy(other.nanos, 0, nanos, 0, nanos.length);
+        next = other.next;
+        count = other.count;
+    }
+
+    public void clear() {
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * @return how many durations are currently remembered
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the most recent duration in nanoseconds, or 0 if there is none
+     */
+    public long getLastNanos() {
+        if (count == 0) return 0;
+        return nanos[(next - 1 + nanos.length) % nanos.length];
+    }
+
+    /**
+     * Computes multiple percentiles at once, which only needs to sort the durations once.
+     *
+     * @param p fractions between 0 and 1, e.g. 0.5 for the median
+     * @return the percentiles in milliseconds, in the same order as <code>p</code>, or 0 if there are no durations
+     */
+    public double[] getPercentilesMillis(double... p) {
+        double[] result = new double[p.length];
+        if (count == 0) return result;
+        long[] sorted = Arrays.copyOf(nanos, count);  // the first count entries are the valid ones
+        Arrays.sort(sorted);
+        for (int k = 0; k < p.length; k++) {
+            int index = (int) Math.ceil(p[k] * count) - 1;
+            result[k] = sorted[Math.max(0, Math.min(count - 1, index))] / 1e6;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,25 @@
+package com.particle_life.backend;
+
+/**
+ * The phases of {@link Physics#update()}, in the order in which they run.
+ *
+ * @see Physics#getPhaseNanos(UpdatePhase)
+ */
+public enum UpdatePhase {
+
+    /**
+     * Sorting the particles into containers (or updating the neighbor lists),
+     * including the preparation of the lookup table.
+     */
+    SORT,
+
+    /**
+     * Computing the forces and updating the velocities.
+     */
+    VELOCITY,
+
+    /**
+     * Moving the particles according to their velocities.
+     */
+    POSITION
+}
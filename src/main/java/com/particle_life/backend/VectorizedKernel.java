@@ -0,0 +1,207 @@
+package com.particle_life.backend;
+
+import jdk.incubator.vector.*;
+
+/**
+ * SIMD implementation of the force evaluation for {@link ForceEngine#VECTORIZED}.
+ * <p>
+ * Only load this class if {@link ForceEngine#isAvailable()} returns <code>true</code>,
+ * otherwise the classes of the Vector API can't be found.
+ */
+final class VectorizedKernel {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    /**
+     * Same number of lanes as {@link #DOUBLES}, or <code>null</code> if there is no such species,
+     * see {@link #isSupported()}.
+     */
+    private static final VectorSpecies<Integer> INTS = intSpecies();
+
+    /**
+     * Number of particles that are processed at once.
+     */
+    static final int LANES = DOUBLES.length();
+
+    private VectorizedKernel() {
+    }
+
+    private static VectorSpecies<Integer> intSpecies() {
+        try {
+            return VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+        } catch (IllegalArgumentException e) {
+            // e.g. if the preferred doubles are 64 bit wide, as there are no 32-bit vectors
+            return null;
+        }
+    }
+
+    /**
+     * @return whether this CPU has vectors that can hold the types for all lanes of the positions.
+     * If not, {@link #accumulate} must not be called.
+     */
+    static boolean isSupported() {
+        return INTS != null;
+    }
+
+    /**
+     * Adds the acceleration that the particles <code>start ... stop - 1</code>
+     * exert on a particle at <code>(px, py)</code> to <code>acceleration</code>.
+     * Neighbors at distance 0 (including the particle itself) are ignored.
+     * The acceleration is looked up in the table of <code>tabulated</code>
+     * and interpolated in the same way as {@link TabulatedAccelerator#lookup(int, double)}.
+     *
+     * @param tableOffset  offset of the table entries for the type of the particle,
+     *                     see {@link TabulatedAccelerator#offset(int, int)}
+     * @param indices      scratch array with at least {@link #LANES} entries
+     * @param acceleration the result is added to the first two entries
+     */
+    static void accumulateTabulated(double px, double py,
+                                    double[] x, double[] y, int[] type,
+                                    int start, int stop,
+                                    boolean wrap, double rmaxSquared,
+                                    TabulatedAccelerator tabulated, int tableOffset,
+                                    int[] indices, double[] acceleration) {
+
+        final double[] table = tabulated.table;
+        final int stride = tabulated.resolution + 1;
+        final double maxBin = tabulated.resolution - 1;
+        final double binsPerDistance = tabulated.binsPerDistance;
+
+        DoubleVector ax = DoubleVector.zero(DOUBLES);
+        DoubleVector ay = DoubleVector.zero(DOUBLES);
+
+        // full chunks can be loaded without a mask, which is a lot faster
+        final int fullStop = start + DOUBLES.loopBound(stop - start);
+        final VectorMask<Double> all = DOUBLES.maskAll(true);
+
+        for (int j = start; j < stop; j += LANES) {
+            VectorMask<Double> inRange = j < fullStop ? all : DOUBLES.indexInRange(j, stop);
+
+            DoubleVector dx;
+            DoubleVector dy;
+            IntVector types;
+            if (j < fullStop) {
+                dx = DoubleVector.fromArray(DOUBLES, x, j).sub(px);
+                dy = DoubleVector.fromArray(DOUBLES, y, j).sub(py);
+                types = IntVector.fromArray(INTS, type, j);
+            } else {
+                dx = DoubleVector.fromArray(DOUBLES, x, j, inRange).sub(px);
+                dy = DoubleVector.fromArray(DOUBLES, y, j, inRange).sub(py);
+                types = IntVector.fromArray(INTS, type, j, inRange.cast(INTS));
+            }
+            if (wrap) {
+                // see Range.wrapConnection()
+                dx = dx.add(1, dx.compare(VectorOperators.LT, -0.5))
+                        .sub(1, dx.compare(VectorOperators.GE, 0.5));
+                dy = dy.add(1, dy.compare(VectorOperators.LT, -0.5))
+                        .sub(1, dy.compare(VectorOperators.GE, 0.5));
+            }
+
+            DoubleVector distanceSquared = dx.mul(dx).add(dy.mul(dy));
+            VectorMask<Double> interacting = inRange
+                    .and(distanceSquared.compare(VectorOperators.NE, 0))
+                    .and(distanceSquared.compare(VectorOperators.LE, rmaxSquared));
+            if (!interacting.anyTrue()) continue;
+
+            // the lanes that don't interact may divide by 0 below, but they are blended out anyway
+            DoubleVector distance = distanceSquared.sqrt();
+            DoubleVector position = distance.mul(binsPerDistance);
+            IntVector bins = (IntVector) position
+                    .min(maxBin)
+                    .convertShape(VectorOperators.D2I, INTS, 0);
+            DoubleVector weight = position.sub(bins.convertShape(VectorOperators.I2D, DOUBLES, 0));
+            // table index = tableOffset + type[j] * (resolution + 1) + bin
+            types.mul(stride).add(bins).add(tableOffset).intoArray(indices, 0);
+
+            // all indices are valid, so the gathers don't need a mask (which is much slower)
+            DoubleVector left = DoubleVector.fromArray(DOUBLES, table, 0, indices, 0);
+            DoubleVector right = DoubleVector.fromArray(DOUBLES, table, 1, indices, 0);
+            DoubleVector factor = right.sub(left).fma(weight, left)
+                    .div(distance)
+                    .blend(0, interacting.not());
+            ax = factor.fma(dx, ax);
+            ay = factor.fma(dy, ay);
+        }
+
+        acceleration[0] += ax.reduceLanes(VectorOperators.ADD);
+        acceleration[1] += ay.reduceLanes(VectorOperators.ADD);
+    }
+
+    /**
+     * Same as {@link #accumulateTabulated}, but evaluates the {@link DefaultAccelerator} directly,
+     * so that the result is the same as with {@link ForceEngine#SCALAR} (up to rounding).
+     * <p>
+     * This is a separate loop instead of a branch in the tabulated one,
+     * as the JIT compiler of JDK 21 miscompiled the gathers when the index array was filled in two branches.
+     *
+     * @param matrix       the matrix entries, row by row
+     * @param matrixOffset index of the row for the type of the particle in <code>matrix</code>
+     * @param indices      scratch array with at least {@link #LANES} entries
+     * @param acceleration the result is added to the first two entries
+     */
+    static void accumulateDefault(double px, double py,
+                                  double[] x, double[] y, int[] type,
+                                  int start, int stop,
+                                  boolean wrap, double rmax,
+                                  double[] matrix, int matrixOffset,
+                                  int[] indices, double[] acceleration) {
+
+        final double rmaxSquared = rmax * rmax;
+        final double rmaxInverse = 1 / rmax;
+        final double beta = DefaultAccelerator.BETA;
+
+        DoubleVector ax = DoubleVector.zero(DOUBLES);
+        DoubleVector ay = DoubleVector.zero(DOUBLES);
+
+        final int fullStop = start + DOUBLES.loopBound(stop - start);
+        final VectorMask<Double> all = DOUBLES.maskAll(true);
+
+        for (int j = start; j < stop; j += LANES) {
+            VectorMask<Double> inRange = j < fullStop ? all : DOUBLES.indexInRange(j, stop);
+
+            DoubleVector dx;
+            DoubleVector dy;
+            IntVector types;
+            if (j < fullStop) {
+                dx = DoubleVector.fromArray(DOUBLES, x, j).sub(px);
+                dy = DoubleVector.fromArray(DOUBLES, y, j).sub(py);
+                types = IntVector.fromArray(INTS, type, j);
+            } else {
+                dx = DoubleVector.fromArray(DOUBLES, x, j, inRange).sub(px);
+                dy = DoubleVector.fromArray(DOUBLES, y, j, inRange).sub(py);
+                types = IntVector.fromArray(INTS, type, j, inRange.cast(INTS));
+            }
+            if (wrap) {
+                dx = dx.add(1, dx.compare(VectorOperators.LT, -0.5))
+                        .sub(1, dx.compare(VectorOperators.GE, 0.5));
+                dy = dy.add(1, dy.compare(VectorOperators.LT, -0.5))
+                        .sub(1, dy.compare(VectorOperators.GE, 0.5));
+            }
+
+            DoubleVector distanceSquared = dx.mul(dx).add(dy.mul(dy));
+            VectorMask<Double> interacting = inRange
+                    .and(distanceSquared.compare(VectorOperators.NE, 0))
+                    .and(distanceSquared.compare(VectorOperators.LE, rmaxSquared));
+            if (!interacting.anyTrue()) continue;
+
+            types.add(matrixOffset).intoArray(indices, 0);
+            DoubleVector a = DoubleVector.fromArray(DOUBLES, matrix, 0, indices, 0);
+
+            // same as DefaultAccelerator.accelerate(), with the distance relative to rmax
+            // (the lanes that don't interact may divide by 0, but they are blended out anyway)
+            DoubleVector distance = distanceSquared.sqrt().mul(rmaxInverse);
+            DoubleVector force = distance.mul(-2).add(1 + beta).abs()
+                    .div(1 - beta)
+                    .neg().add(1)
+                    .mul(a)
+                    .blend(distance.div(beta).sub(1), distance.compare(VectorOperators.LT, beta));
+            // divided by rmax once more, as dx and dy aren't relative to rmax
+            DoubleVector factor = force.div(distance).mul(rmaxInverse)
+                    .blend(0, interacting.not());
+            ax = factor.fma(dx, ax);
+            ay = factor.fma(dy, ay);
+        }
+
+        acceleration[0] += ax.reduceLanes(VectorOperators.ADD);
+        acceleration[1] += ay.reduceLanes(VectorOperators.ADD);
+    }
+}